@@ -1,5 +1,12 @@
 package net.amoebaman.kitmaster;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import net.amoebaman.kitmaster.controllers.InventoryController;
 import net.amoebaman.kitmaster.enums.Attribute;
 import net.amoebaman.kitmaster.enums.ClearKitsContext;
@@ -9,14 +16,22 @@ import net.amoebaman.kitmaster.enums.PermsResult;
 import net.amoebaman.kitmaster.handlers.HistoryHandler;
 import net.amoebaman.kitmaster.handlers.KitHandler;
 import net.amoebaman.kitmaster.handlers.MessageHandler;
+import net.amoebaman.kitmaster.handlers.PermissionHandler;
 import net.amoebaman.kitmaster.handlers.TimeStampHandler;
+import net.amoebaman.kitmaster.objects.GivePlan;
 import net.amoebaman.kitmaster.objects.Kit;
 import net.amoebaman.kitmaster.utilities.ClearKitsEvent;
 import net.amoebaman.kitmaster.utilities.GiveKitEvent;
 
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
 import org.bukkit.potion.PotionEffect;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
 public class Actions {
 	
 	/**
@@ -35,21 +50,104 @@ public class Actions {
 	public static boolean debugNextGiveKit = false;
 	
 	public static GiveKitResult giveKit(Player player, Kit kit, GiveKitContext context){
-		boolean debug = debugNextGiveKit;
-		debugNextGiveKit = false;
-		
 		/*
 		 * We can't give a player a null kit
 		 * Return a result that reflects this
 		 */
 		if(kit == null)
 			return GiveKitResult.FAIL_NULL_KIT;
+		return giveKit(player, kit, context, GiveKitChecks.NONE);
+	}
+	
+	/**
+	 * Gives a player a kit, without holding up the main thread while timestamps and history are fetched from the database.
+	 * Everything the kit's checks need is gathered off the main thread, and then the kit is checked again and given on the main thread.
+	 * If the player logs off in the meantime, the kit is not given and the result is FAIL_CANCELLED.
+	 * @param player The player to give the kit to
+	 * @param kit The kit to give
+	 * @param context The context the kit is being given in
+	 * @return A future that will hold the GiveKitResult once the kit has been given, which is always completed on the main thread
+	 */
+	public static ListenableFuture<GiveKitResult> giveKitAsync(final Player player, final Kit kit, final GiveKitContext context){
+		final SettableFuture<GiveKitResult> future = SettableFuture.create();
+		if(kit == null){
+			future.set(GiveKitResult.FAIL_NULL_KIT);
+			return future;
+		}
+		Bukkit.getScheduler().runTaskAsynchronously(KitMaster.plugin(), new Runnable(){ public void run(){
+			GiveKitChecks fetched = null;
+			Throwable failure = null;
+			try{
+				fetched = new GiveKitChecks(player, kit, context);
+			}
+			catch(Throwable t){
+				failure = t;
+			}
+			final GiveKitChecks checks = fetched;
+			final Throwable error = failure;
+			/*
+			 * Even a failure is reported on the main thread, since callbacks run on whichever thread completes the future
+			 */
+			Bukkit.getScheduler().runTask(KitMaster.plugin(), new Runnable(){ public void run(){
+				if(error != null){
+					future.setException(error);
+					return;
+				}
+				try{
+					future.set(player.isOnline() ? giveKit(player, kit, context, checks) : GiveKitResult.FAIL_CANCELLED);
+				}
+				catch(Throwable t){
+					future.setException(t);
+				}
+			}});
+		}});
+		return future;
+	}
+	
+	/**
+	 * Gives a kit to many players at once, such as at the start of a match.
+	 * The checks for every player are gathered off the main thread in one pass, then the kits are given on the main thread, spread over as many ticks as it takes to stay within the configured time budget per tick.
+	 * When using SQL, each kit's timestamp and history are queued as one unit in SQLHandler's write queue, which sends the whole batch's writes together in a few large transactions off the main thread.
+	 * The batch no longer holds its writes back until the end to get a single flush, since the write queue's batching already does that.
+	 * Players who log off before their turn are not given the kit, and their result is FAIL_CANCELLED.
+	 * @param players The players to give the kit to
+	 * @param kit The kit to give
+	 * @param context The context the kit is being given in
+	 * @return A future that will hold the result for each player, in the order they were given, once every kit has been given
+	 */
+	public static ListenableFuture<Map<Player, GiveKitResult>> giveKitToAll(Collection<? extends Player> players, final Kit kit, final GiveKitContext context){
+		final SettableFuture<Map<Player, GiveKitResult>> future = SettableFuture.create();
+		final List<Player> targets = new ArrayList<Player>(players);
+		if(kit == null || targets.isEmpty()){
+			Map<Player, GiveKitResult> results = new LinkedHashMap<Player, GiveKitResult>();
+			for(Player player : targets)
+				results.put(player, GiveKitResult.FAIL_NULL_KIT);
+			future.set(results);
+			return future;
+		}
+		Bukkit.getScheduler().runTaskAsynchronously(KitMaster.plugin(), new Runnable(){ public void run(){
+			List<GiveKitChecks> checks = new ArrayList<GiveKitChecks>(targets.size());
+			try{
+				for(Player player : targets)
+					checks.add(new GiveKitChecks(player, kit, context));
+			}
+			catch(final Throwable t){
+				Bukkit.getScheduler().runTask(KitMaster.plugin(), new Runnable(){ public void run(){
+					future.setException(t);
+				}});
+				return;
+			}
+			Bukkit.getScheduler().runTask(KitMaster.plugin(), new BulkGiveKit(targets, kit, context, checks, future));
+		}});
+		return future;
+	}
+	
+	private static GiveKitResult giveKit(Player player, Kit kit, GiveKitContext context, GiveKitChecks checks){
+		boolean debug = debugNextGiveKit;
+		debugNextGiveKit = false;
+		
 		if(debug)
 			KitMaster.logger().info("Attempting to give " + player.getName() + " the " + kit.name + " kit");
-		/*
-		 * Clone the kit to prevent accidental mutation damage to the base kit
-		 */
-		kit = kit.clone();
 		/*
 		 * Check if the player has permission to take this kit in the given manner
 		 * Ignore these checks if the context overrides them
@@ -104,13 +202,14 @@ public class Actions {
 			 * Don't perform these checks if the context overrides them or the player has an override permission
 			 */
 			if(!context.overrides && !TimeStampHandler.hasOverride(player, parentKit)){
+				long stamp = checks.getTimeStamp(player, parentKit);
 				if(debug){
-					KitMaster.logger().info("Checking parent timestamp: " + TimeStampHandler.getTimeStamp(player, parentKit));
-					KitMaster.logger().info("Checking parent timeout: " + TimeStampHandler.timeoutRemaining(player, parentKit));
+					KitMaster.logger().info("Checking parent timestamp: " + stamp);
+					KitMaster.logger().info("Checking parent timeout: " + TimeStampHandler.timeoutRemaining(parentKit, stamp));
 				}
-				switch(TimeStampHandler.timeoutCheck(player, parentKit)){
+				switch(TimeStampHandler.timeoutCheck(parentKit, stamp)){
 					case FAIL_TIMEOUT:
-						player.sendMessage(MessageHandler.getMessage("take_kit.timeout.fail_parent", kit).replace("%time%", TimeStampHandler.timeoutRemaining(player, parentKit)));
+						player.sendMessage(MessageHandler.getMessage("take_kit.timeout.fail_parent", kit).replace("%time%", TimeStampHandler.timeoutRemaining(parentKit, stamp)));
 						return GiveKitResult.FAIL_TIMEOUT;
 					case FAIL_SINGLE_USE:
 						player.sendMessage(MessageHandler.getMessage("take_kit.timeout.fail_su_parent", kit));
@@ -122,13 +221,14 @@ public class Actions {
 		 * Don't perform these checks if the context overrides them or the player has an override permission
 		 */
 		if(!context.overrides && !TimeStampHandler.hasOverride(player, kit)){
+			long stamp = checks.getTimeStamp(player, kit);
 			if(debug){
-				KitMaster.logger().info("Checking timestamp: " + TimeStampHandler.getTimeStamp(player, parentKit));
-				KitMaster.logger().info("Checking timeout: " + TimeStampHandler.timeoutRemaining(player, kit));
+				KitMaster.logger().info("Checking timestamp: " + stamp);
+				KitMaster.logger().info("Checking timeout: " + TimeStampHandler.timeoutRemaining(kit, stamp));
 			}
-			switch(TimeStampHandler.timeoutCheck(player, kit)){
+			switch(TimeStampHandler.timeoutCheck(kit, stamp)){
 				case FAIL_TIMEOUT:
-					player.sendMessage(MessageHandler.getMessage("take_kit.timeout.fail_generic", kit).replace("%time%", TimeStampHandler.timeoutRemaining(player, kit)));
+					player.sendMessage(MessageHandler.getMessage("take_kit.timeout.fail_generic", kit).replace("%time%", TimeStampHandler.timeoutRemaining(kit, stamp)));
 					return GiveKitResult.FAIL_TIMEOUT;
 				case FAIL_SINGLE_USE:
 					player.sendMessage(MessageHandler.getMessage("take_kit.timeout.fail_su_generic", kit));
@@ -139,9 +239,10 @@ public class Actions {
 		 * Check if the player can afford the kit
 		 * Don't perform these checks if the economy is not enabled, or if the contexts overrides them or the player has an override permission
 		 */
-		if(KitMaster.getEcon() != null)
-			if(KitMaster.getEcon().getBalance(player.getName()) < kit.doubleAttribute(Attribute.COST) && !player.hasPermission("kitmaster.nocharge") && !player.hasPermission("kitmaster.nocharge." + kit.name)){
-				player.sendMessage(MessageHandler.getMessage("take_kit.econ.fail_cash", kit).replace("%amount%", "" + kit.doubleAttribute(Attribute.COST)).replace("%currency%", KitMaster.getEcon().currencyNamePlural()));
+		GivePlan plan = kit.getPlan();
+		if(KitMaster.getEcon() != null && plan.cost > 0)
+			if(KitMaster.getEcon().getBalance(player.getName()) < plan.cost && !player.hasPermission(plan.noChargeNode) && !player.hasPermission(plan.noChargeKitNode)){
+				player.sendMessage(MessageHandler.getMessage("take_kit.econ.fail_cash", kit).replace("%amount%", "" + plan.cost).replace("%currency%", KitMaster.getEcon().currencyNamePlural()));
 				return GiveKitResult.FAIL_COST;
 			}
 		/*
@@ -149,11 +250,10 @@ public class Actions {
 		 */
 		if(debug)
 			KitMaster.logger().info("Checking history: " + HistoryHandler.getHistory(player));
-		for(Kit other : HistoryHandler.getHistory(player))
-			if(other.booleanAttribute(Attribute.RESTRICT_KITS)){
-				player.sendMessage(MessageHandler.getMessage("take_kit.misc.fail_restrict"));
-				return GiveKitResult.FAIL_RESTRICTED;
-			}
+		if(HistoryHandler.isRestricted(player)){
+			player.sendMessage(MessageHandler.getMessage("take_kit.misc.fail_restrict"));
+			return GiveKitResult.FAIL_RESTRICTED;
+		}
 		/*
 		 * Create and call a GiveKitEvent so that other plugins can modify or attempt to cancel the kit
 		 * If the event comes back cancelled and the context doesn't override it, end here
@@ -167,44 +267,49 @@ public class Actions {
 		 * Don't perform this operation if the kit is a parent
 		 */
 		if(context != GiveKitContext.PARENT_GIVEN)
-			applyKitClears(player, kit);
+			applyKitClears(player, plan);
 		/*
 		 * Apply the parent kit
 		 */
 		if(parentKit != null)
-			giveKit(player, parentKit, GiveKitContext.PARENT_GIVEN);
+			giveKit(player, parentKit, GiveKitContext.PARENT_GIVEN, checks);
+		/*
+		 * If another plugin swapped in a different kit, its items and effects have to be planned now
+		 */
+		GivePlan given = kitEvent.getKit() == kit ? plan : kitEvent.getKit().getPlan();
 		/*
 		 * Add the kit's items to the player's inventory
+		 * Anything that doesn't fit is dropped at the player's feet
 		 */
-		InventoryController.addItemsToInventory(player, kitEvent.getKit().items, parentKit != null && kit.booleanAttribute(Attribute.UPGRADE));
+		List<ItemStack> overflow = InventoryController.placeItems(player, given.placements, plan.upgrade);
+		if(debug && !overflow.isEmpty())
+			KitMaster.logger().info("Items that didn't fit: " + overflow);
 		/*
 		 * Apply the kit's potion effects to the player
 		 */
-		if(kit.booleanAttribute(Attribute.INFINITE_EFFECTS))
-			for(int i = 0; i < kit.effects.size(); i++)
-				kit.effects.set(i, new PotionEffect(kit.effects.get(i).getType(), Integer.MAX_VALUE, kit.effects.get(i).getAmplifier()));
-		player.addPotionEffects(kitEvent.getKit().effects);
+		player.addPotionEffects(given.effects);
 		/*
 		 * Grant the kit's permissions to the player
-		 * Don't perform this operation if the permission handle is not enabled
 		 */
-		if(KitMaster.getPerms() != null)
-			for(String node : kit.permissions)
-				KitMaster.getPerms().playerAdd(player, node);
+		PermissionHandler.grant(player, kit);
 		/*
 		 * Apply the kit's economic attributes
 		 * Don't perform this operation if the economy handle is not enabled, or if the player has  an override permission
 		 */
-		if(KitMaster.getEcon() != null && !player.hasPermission("kitmaster.nocharge") && !player.hasPermission("kitmaster.nocharge." + kit.name)){
-			KitMaster.getEcon().withdrawPlayer(player.getName(), kit.doubleAttribute(Attribute.COST));
-			KitMaster.getEcon().depositPlayer(player.getName(), kit.doubleAttribute(Attribute.CASH));
+		if(KitMaster.getEcon() != null && !player.hasPermission(plan.noChargeNode) && !player.hasPermission(plan.noChargeKitNode)){
+			KitMaster.getEcon().withdrawPlayer(player.getName(), plan.cost);
+			KitMaster.getEcon().depositPlayer(player.getName(), plan.cash);
 		}
 		/*
 		 * Record that this kit was taken
 		 * Stamp the time, and add the kit to the player's history
+		 * When using SQL, both are queued to be written together in one transaction
 		 */
-		TimeStampHandler.setTimeStamp(kit.booleanAttribute(Attribute.GLOBAL_TIMEOUT) ? null : player, kit);
-		HistoryHandler.addToHistory(player, kit);
+		List<String> record = KitMaster.isSQLRunning() ? new ArrayList<String>(2) : null;
+		TimeStampHandler.setTimeStamp(kit.booleanAttribute(Attribute.GLOBAL_TIMEOUT) ? null : player, kit, record);
+		HistoryHandler.addToHistory(player, kit, record);
+		if(record != null)
+			KitMaster.getSQL().queueTransaction(record);
 		/*
 		 * Notify the player of their good fortune
 		 */
@@ -227,17 +332,17 @@ public class Actions {
 		clearAll(player, true, ClearKitsContext.PLUGIN_ORDER);
 	}
 	
-	private static void applyKitClears(Player player, Kit kit){
-		if(kit.booleanAttribute(Attribute.CLEAR_ALL) || (kit.booleanAttribute(Attribute.CLEAR_INVENTORY) && kit.booleanAttribute(Attribute.CLEAR_EFFECTS) && kit.booleanAttribute(Attribute.CLEAR_PERMISSIONS))){
+	private static void applyKitClears(Player player, GivePlan plan){
+		if(plan.clearAll){
 			clearAll(player, true, ClearKitsContext.KIT_ATTRIBUTE);
 			HistoryHandler.resetHistory(player);
 		}
 		else{
-			if(kit.booleanAttribute(Attribute.CLEAR_INVENTORY))
+			if(plan.clearInventory)
 				clearInventory(player, true, ClearKitsContext.KIT_ATTRIBUTE);
-			if(kit.booleanAttribute(Attribute.CLEAR_EFFECTS))
+			if(plan.clearEffects)
 				clearEffects(player, true, ClearKitsContext.KIT_ATTRIBUTE);
-			if(kit.booleanAttribute(Attribute.CLEAR_PERMISSIONS) && KitMaster.getPerms() != null)
+			if(plan.clearPermissions)
 				clearPermissions(player, true, ClearKitsContext.KIT_ATTRIBUTE);
 		}
 	}
@@ -281,12 +386,98 @@ public class Actions {
 		ClearKitsEvent event = new ClearKitsEvent(player, false, false, true, context);
 		if(callEvent)
 			event.callEvent();
-		if(!event.isCancelled() && event.clearsPermissions()){
-			if(KitMaster.getPerms() != null)
-				for(Kit last : HistoryHandler.getHistory(player))
-					for(String node : last.permissions)
-						KitMaster.getPerms().playerRemove(player, node);
+		if(!event.isCancelled() && event.clearsPermissions())
+			PermissionHandler.revokeAll(player);
+	}
+	
+	/**
+	 * Gives a kit to a list of players on the main thread, a few at a time, rescheduling itself for the next tick whenever it runs out of time.
+	 */
+	private static class BulkGiveKit implements Runnable{
+		
+		private final List<Player> players;
+		private final Kit kit;
+		private final GiveKitContext context;
+		private final List<GiveKitChecks> checks;
+		private final SettableFuture<Map<Player, GiveKitResult>> future;
+		private final Map<Player, GiveKitResult> results = new LinkedHashMap<Player, GiveKitResult>();
+		private int next = 0;
+		
+		public BulkGiveKit(List<Player> players, Kit kit, GiveKitContext context, List<GiveKitChecks> checks, SettableFuture<Map<Player, GiveKitResult>> future){
+			this.players = players;
+			this.kit = kit;
+			this.context = context;
+			this.checks = checks;
+			this.future = future;
+		}
+		
+		public void run(){
+			long budget = KitMaster.config().getLong("bulkGive.tickBudget", 5) * 1000000;
+			long start = System.nanoTime();
+			try{
+				/*
+				 * Always give at least one kit per tick, so that a tiny budget can't stall the batch forever
+				 */
+				do{
+					Player player = players.get(next);
+					GiveKitChecks playerChecks = checks.get(next);
+					next++;
+					results.put(player, player.isOnline() ? giveKit(player, kit, context, playerChecks) : GiveKitResult.FAIL_CANCELLED);
+				}
+				while(next < players.size() && System.nanoTime() - start < budget);
+			}
+			catch(Throwable t){
+				future.setException(t);
+				return;
+			}
+			if(next < players.size())
+				Bukkit.getScheduler().runTask(KitMaster.plugin(), this);
+			else
+				future.set(results);
+		}
+		
+	}
+	
+	/**
+	 * Everything the checks in giveKit need that might have to be fetched from a database.
+	 * It's all fetched when this is constructed, so that it can be done off the main thread.
+	 * Balances and permissions aren't fetched here, since neither Vault nor Bukkit's permissions are safe to use off the main thread.
+	 */
+	private static class GiveKitChecks{
+		
+		/** Checks that fetched nothing ahead of time, so everything is looked up when it's needed */
+		public static final GiveKitChecks NONE = new GiveKitChecks();
+		
+		private final HashMap<Integer, Long> stamps = new HashMap<Integer, Long>();
+		
+		private GiveKitChecks(){}
+		
+		public GiveKitChecks(Player player, Kit kit, GiveKitContext context){
+			/*
+			 * Only the kit and its parent have their timeouts checked, and not at all if the context overrides them
+			 */
+			if(!context.overrides){
+				List<Kit> lineage = kit.getLineage();
+				for(Kit each : lineage.subList(0, Math.min(2, lineage.size())))
+					stamps.put(each.ordinal, TimeStampHandler.getTimeStamp(each.booleanAttribute(Attribute.GLOBAL_TIMEOUT) ? null : player, each));
+			}
+			/*
+			 * History is cached once fetched, so fetching it now means it won't need to be fetched later
+			 */
+			HistoryHandler.prefetch(player);
+		}
+		
+		/*
+		 * The timestamp might have been updated since it was fetched, but any update made by this server is known without fetching it again
+		 */
+		public long getTimeStamp(Player player, Kit kit){
+			OfflinePlayer owner = kit.booleanAttribute(Attribute.GLOBAL_TIMEOUT) ? null : player;
+			Long stamp = stamps.get(kit.ordinal);
+			if(stamp == null)
+				return TimeStampHandler.getTimeStamp(owner, kit);
+			return Math.max(stamp, TimeStampHandler.getKnownTimeStamp(owner, kit));
 		}
+		
 	}
 	
 }
@@ -1,10 +1,15 @@
 package net.amoebaman.kitmaster;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
@@ -19,12 +24,15 @@ import net.amoebaman.amoebautils.AmoebaUtils;
 import net.amoebaman.amoebautils.plugin.MetricsLite;
 import net.amoebaman.amoebautils.plugin.Updater;
 import net.amoebaman.amoebautils.plugin.Updater.UpdateType;
+import net.amoebaman.kitmaster.controllers.ItemScorer;
 import net.amoebaman.kitmaster.enums.Attribute;
 import net.amoebaman.kitmaster.enums.ClearKitsContext;
 import net.amoebaman.kitmaster.handlers.*;
 import net.amoebaman.kitmaster.objects.Kit;
+import net.amoebaman.kitmaster.objects.KitCatalog;
+import net.amoebaman.kitmaster.objects.KitRegistry;
+import net.amoebaman.kitmaster.objects.MaterialTable;
 import net.amoebaman.kitmaster.sql.SQLHandler;
-import net.amoebaman.kitmaster.sql.SQLQueries;
 
 import net.milkbowl.vault.economy.Economy;
 import net.milkbowl.vault.permission.Permission;
@@ -36,12 +44,16 @@ public class KitMaster extends JavaPlugin implements Listener{
 	private static int TASK_ID;
 	
 	private static SQLHandler SQL;
+	
+	private static final AtomicReference<KitCatalog> CATALOG = new AtomicReference<KitCatalog>(new KitCatalog());
+	private static final ThreadLocal<KitCatalog> BUILDING = new ThreadLocal<KitCatalog>();
 	public static final String MAIN_DIR = "plugins/KitMaster";
 	public static final String KITS_DIR = MAIN_DIR + "/kits";
 	public static final String DATA_DIR = MAIN_DIR + "/data";
 	private static File CONFIG_FILE, KITS_FILE, CUSTOM_DATA_FILE,
 	    MESSAGES_FILE;
 	private static File SIGNS_FILE, TIMESTAMPS_FILE, HISTORY_FILE;
+	private static File SNAPSHOT_FILE;
 	
 	private static boolean VAULT_ENABLED;
 	private static Permission PERMISSIONS;
@@ -69,6 +81,7 @@ public class KitMaster extends JavaPlugin implements Listener{
 		SIGNS_FILE = AmoebaUtils.getConfigFile(this, "data/signs");
 		TIMESTAMPS_FILE = AmoebaUtils.getConfigFile(this, "data/timestamps");
 		HISTORY_FILE = AmoebaUtils.getConfigFile(this, "data/history");
+		SNAPSHOT_FILE = new File(DATA_DIR, "kits.snapshot");
 		
 		try{
 			reloadKits();
@@ -97,6 +110,10 @@ public class KitMaster extends JavaPlugin implements Listener{
 		hookVault();
 		logger().info("Purged " + SignHandler.repairSigns() + " absent kit signs");
 		
+		if(getConfig().getBoolean("reload.watchFiles", false))
+			KitWatchHandler.start();
+		TimeStampHandler.startFlushing(TIMESTAMPS_FILE);
+		
 		KitMasterEventHandler.init(this);
 		KitMasterCommandHandler.init(this);
 		TASK_ID = Bukkit.getScheduler().scheduleSyncRepeatingTask(this, new InfiniteEffects(), 15, 15);
@@ -105,14 +122,18 @@ public class KitMaster extends JavaPlugin implements Listener{
 	@Override
 	public void onDisable(){
 		Bukkit.getScheduler().cancelTask(TASK_ID);
+		KitWatchHandler.stop();
 		if(getConfig().getBoolean("clearKits.onDisable", true))
 			for(OfflinePlayer player : HistoryHandler.getPlayers())
 				if(player instanceof Player)
 					Actions.clearAll((Player) player, true, ClearKitsContext.PLUGIN_DISABLE);
+		PermissionHandler.revokeEveryone();
+		TimeStampHandler.stopFlushing();
+		if(SQL != null)
+			SQL.flush();
 		if(!isSQLRunning()){
 			try{
 				SignHandler.save(SIGNS_FILE);
-				TimeStampHandler.save(TIMESTAMPS_FILE);
 				HistoryHandler.save(HISTORY_FILE);
 			}
 			catch(Exception e){
@@ -134,15 +155,15 @@ public class KitMaster extends JavaPlugin implements Listener{
 			e.printStackTrace();
 		}
 		
+		/*
+		 * Build the new catalog off to the side, and publish it all at once when it's finished
+		 * Anything that fails to load is carried over from the current catalog
+		 */
+		KitCatalog current = CATALOG.get();
+		
+		YamlConfiguration customData = current.customData;
 		try{
-			YamlConfiguration yaml = YamlConfiguration.loadConfiguration(CUSTOM_DATA_FILE);
-			
-			BookHandler.yaml = yaml.isConfigurationSection("books") ? yaml.getConfigurationSection("books") : yaml.createSection("books");
-			CustomItemHandler.yaml = yaml.isConfigurationSection("items") ? yaml.getConfigurationSection("items") : yaml.createSection("items");
-			CustomPotionHandler.yaml = yaml.isConfigurationSection("potions") ? yaml.getConfigurationSection("potions") : yaml.createSection("potions");
-			FireworkEffectHandler.yaml = yaml.isConfigurationSection("bursts") ? yaml.getConfigurationSection("bursts") : yaml.createSection("bursts");
-			FireworkHandler.yaml = yaml.isConfigurationSection("fireworks") ? yaml.getConfigurationSection("fireworks") : yaml.createSection("fireworks");
-			
+			customData = YamlConfiguration.loadConfiguration(CUSTOM_DATA_FILE);
 			logger().info("Loaded custom data from " + CUSTOM_DATA_FILE.getPath());
 		}
 		catch(Exception e){
@@ -150,38 +171,95 @@ public class KitMaster extends JavaPlugin implements Listener{
 			e.printStackTrace();
 		}
 		
+		ConfigurationSection messages = current.messages;
 		try{
-			KitHandler.loadKits(KITS_FILE);
-			logger().info("Loaded all kit files from " + KITS_FILE.getPath());
-			
-			KitHandler.loadKits(new File(KITS_DIR));
-			logger().info("Loaded all kit files from " + KITS_DIR);
-			
-			if(isSQLRunning())
-				for(Kit kit : KitHandler.getKits())
-					getSQL().executeCommand(SQLQueries.ADD_KIT_TO_TIMESTAMP_TABLE.replace(SQLQueries.KIT_MACRO, kit.name));
+			messages = YamlConfiguration.loadConfiguration(MESSAGES_FILE);
 		}
 		catch(Exception e){
-			logger().severe("Error while loading kits");
+			logger().severe("Error while loading messages");
 			e.printStackTrace();
 		}
 		
+		KitCatalog next = new KitCatalog(current.kits, customData, messages);
+		
+		/*
+		 * Kits are parsed against the new custom data, so expose the new catalog to this thread only while they load
+		 */
+		BUILDING.set(next);
 		try{
-			MessageHandler.yaml = YamlConfiguration.loadConfiguration(MESSAGES_FILE);
+			/*
+			 * Kits are planned against the material table, and custom items can be named in maxStacks, so it's rebuilt here
+			 */
+			MaterialTable.rebuild(config());
+			ItemScorer.forgetAll();
+			
+			/*
+			 * If none of the kit files or the custom data have changed since the last load, the compiled kits can be loaded straight from the snapshot
+			 */
+			List<File> sources = new ArrayList<File>();
+			sources.add(KITS_FILE);
+			sources.add(CUSTOM_DATA_FILE);
+			sources.addAll(KitHandler.getKitFiles(new File(KITS_DIR)));
+			boolean useSnapshot = config().getBoolean("loading.snapshot", true);
+			
+			List<Kit> kits = useSnapshot ? SnapshotHandler.load(SNAPSHOT_FILE, sources) : null;
+			if(kits != null)
+				logger().info("Loaded " + kits.size() + " kits from the snapshot at " + SNAPSHOT_FILE.getPath());
+			else{
+				kits = new ArrayList<Kit>();
+				
+				kits.addAll(KitHandler.parseKits(KITS_FILE));
+				logger().info("Loaded all kit files from " + KITS_FILE.getPath());
+				
+				kits.addAll(KitHandler.parseKits(new File(KITS_DIR)));
+				logger().info("Loaded all kit files from " + KITS_DIR);
+				
+				if(useSnapshot)
+					SnapshotHandler.save(SNAPSHOT_FILE, sources, kits);
+			}
+			
+			next = next.withKits(new KitRegistry(kits));
 		}
 		catch(Exception e){
-			logger().severe("Error while loading messages");
+			logger().severe("Error while loading kits");
 			e.printStackTrace();
 		}
+		finally{
+			BUILDING.remove();
+		}
+		
+		CATALOG.set(next);
+		logger().info("Published kit catalog version " + next.version + " with " + next.kits.size() + " kits");
+	}
+	
+	/**
+	 * Gets the current kit catalog.  The catalog is an immutable snapshot of kits, custom data, and messages, and is replaced as a whole when kits are reloaded.
+	 * While kits are being loaded, the thread loading them will see the catalog being built instead.
+	 * @return the catalog
+	 */
+	public static KitCatalog getCatalog(){
+		KitCatalog building = BUILDING.get();
+		return building != null ? building : CATALOG.get();
+	}
+	
+	/**
+	 * Atomically replaces the current kit catalog, as long as it hasn't been replaced since it was retrieved.
+	 * @param expect the catalog that is expected to be current
+	 * @param update the new catalog
+	 * @return true if the catalog was replaced
+	 */
+	public static boolean publishCatalog(KitCatalog expect, KitCatalog update){
+		return CATALOG.compareAndSet(expect, update);
 	}
 	
 	public static void saveCustomData(){
+		KitCatalog catalog = getCatalog();
 		YamlConfiguration yaml = new YamlConfiguration();
-		yaml.createSection("books", BookHandler.yaml.getValues(true));
-		yaml.createSection("items", CustomItemHandler.yaml.getValues(true));
-		yaml.createSection("potions", CustomPotionHandler.yaml.getValues(true));
-		yaml.createSection("bursts", FireworkEffectHandler.yaml.getValues(true));
-		yaml.createSection("fireworks", FireworkHandler.yaml.getValues(true));
+		yaml.createSection("books", catalog.books.getValues(true));
+		yaml.createSection("items", catalog.items.getValues(true));
+		yaml.createSection("potions", catalog.potions.getValues(true));
+		yaml.createSection("bursts", catalog.bursts.getValues(true));
+		yaml.createSection("fireworks", catalog.fireworks.getValues(true));
 		try{
 			yaml.save(CUSTOM_DATA_FILE);
 		}
@@ -293,17 +371,21 @@ public class KitMaster extends JavaPlugin implements Listener{
 		
 		public void run(){
 			for(World world : Bukkit.getWorlds())
-				for(Player player : world.getPlayers())
+				for(Player player : world.getPlayers()){
+					Collection<PotionEffect> active = null;
 					for(Kit kit : HistoryHandler.getHistory(player))
 						if(kit != null && kit.booleanAttribute(Attribute.INFINITE_EFFECTS))
-							for(PotionEffect effect : kit.effects){
+							for(PotionEffect effect : kit.getPlan().effects){
+								if(active == null)
+									active = player.getActivePotionEffects();
 								boolean needsRefresh = true;
-								for(PotionEffect actual : player.getActivePotionEffects())
+								for(PotionEffect actual : active)
 									if(effect.getType().equals(actual.getType()) && actual.getAmplifier() >= effect.getAmplifier())
 										needsRefresh = false;
 								if(needsRefresh)
 									player.addPotionEffect(effect, true);
 							}
+				}
 		}
 		
 	}
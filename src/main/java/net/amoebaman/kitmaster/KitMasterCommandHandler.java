@@ -1,8 +1,11 @@
 package net.amoebaman.kitmaster;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.amoebaman.amoebautils.CommandController;
 import net.amoebaman.amoebautils.CommandController.CommandHandler;
@@ -15,13 +18,17 @@ import net.amoebaman.kitmaster.enums.PermsResult;
 import net.amoebaman.kitmaster.handlers.BookHandler;
 import net.amoebaman.kitmaster.handlers.CustomItemHandler;
 import net.amoebaman.kitmaster.handlers.FireworkHandler;
+import net.amoebaman.kitmaster.handlers.GrantQueue;
 import net.amoebaman.kitmaster.handlers.KitHandler;
 import net.amoebaman.kitmaster.handlers.MessageHandler;
 import net.amoebaman.kitmaster.objects.Kit;
+import net.amoebaman.kitmaster.sql.SQLHandler;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
+import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
@@ -32,6 +39,9 @@ import org.bukkit.inventory.meta.SkullMeta;
 import org.bukkit.potion.PotionEffect;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class KitMasterCommandHandler implements TabCompleter{
 
@@ -60,37 +70,130 @@ public class KitMasterCommandHandler implements TabCompleter{
 			player.sendMessage(MessageHandler.getPrefix() + "That kit does not exist");
 			return;
 		}
-		GiveKitResult result = Actions.giveKit(player, KitHandler.getKit(args[0]), GiveKitContext.COMMAND_TAKEN);
+		ListenableFuture<GiveKitResult> result = GrantQueue.submit(player, KitHandler.getKit(args[0]), GiveKitContext.COMMAND_TAKEN);
 		if(KitMaster.DEBUG_KITS)
-			KitMaster.logger().info("Result: " + result.name());
+			Futures.addCallback(result, new FutureCallback<GiveKitResult>(){
+				public void onSuccess(GiveKitResult result){
+					KitMaster.logger().info("Result: " + result.name());
+				}
+				public void onFailure(Throwable t){
+					t.printStackTrace();
+				}
+			});
 		return;
 	}
 
 	@CommandHandler(cmd = "givekit", permissions = "kitmaster.give", permissionMessage = "You dont have permission to give kits")
-	public void givekit(CommandSender sender, String[] args){
+	public void givekit(final CommandSender sender, String[] args){
 		if (args.length < 2){
 			sender.sendMessage(MessageHandler.getPrefix() + "Include a player to give to and a kit to give");
 			return;
 		}
-		Player target = Bukkit.getPlayer(args[0]);
 		if(!KitHandler.isKit(args[1])){
 			sender.sendMessage(MessageHandler.getPrefix() + "That kit does not exist");
 			return;
 		}
-		Kit kit = KitHandler.getKit(args[1]);
+		final Kit kit = KitHandler.getKit(args[1]);
+		if(args[0].startsWith("@")){
+			List<Player> targets = selectPlayers(sender, args[0]);
+			if(targets == null)
+				return;
+			sender.sendMessage(MessageHandler.getPrefix() + "Giving the " + kit.name + " kit to " + targets.size() + " players...");
+			Futures.addCallback(Actions.giveKitToAll(targets, kit, GiveKitContext.COMMAND_GIVEN), new FutureCallback<Map<Player, GiveKitResult>>(){
+				public void onSuccess(Map<Player, GiveKitResult> results){
+					EnumMap<GiveKitResult, Integer> counts = new EnumMap<GiveKitResult, Integer>(GiveKitResult.class);
+					for(GiveKitResult result : results.values())
+						counts.put(result, counts.containsKey(result) ? counts.get(result) + 1 : 1);
+					Integer given = counts.remove(GiveKitResult.SUCCESS);
+					String message = MessageHandler.getPrefix() + (given == null ? 0 : given) + " of " + results.size() + " players have been given the " + kit.name + " kit";
+					for(GiveKitResult result : counts.keySet())
+						message += ", " + counts.get(result) + " " + result.name().toLowerCase().replace('_', ' ');
+					sender.sendMessage(message);
+				}
+				public void onFailure(Throwable t){
+					t.printStackTrace();
+					sender.sendMessage(MessageHandler.getPrefix() + "An error occurred while giving the " + kit.name + " kit");
+				}
+			});
+			return;
+		}
+		Player target = Bukkit.getPlayer(args[0]);
+		if(target == null){
+			sender.sendMessage(MessageHandler.getPrefix() + "That player is not online");
+			return;
+		}
 		GiveKitResult result = Actions.giveKit(target, kit, GiveKitContext.COMMAND_GIVEN);
 		if(KitMaster.DEBUG_KITS)
 			KitMaster.logger().info("Result: " + result.name());
 		sender.sendMessage(MessageHandler.getPrefix() + target.getName() + " has been given the " + kit.name + " kit");
 		return;
 	}
+	
+	/**
+	 * Selects online players for a bulk command.  The selector can be @all, @world or @world:&lt;name&gt;, @radius:&lt;blocks&gt;, or @group:&lt;name&gt;.
+	 * @param sender The sender of the command, who is told what went wrong if the selector is invalid
+	 * @param selector The selector
+	 * @return The selected players, or null if the selector was invalid
+	 */
+	private static List<Player> selectPlayers(CommandSender sender, String selector){
+		String[] split = selector.substring(1).split(":", 2);
+		String type = split[0].toLowerCase(), arg = split.length > 1 ? split[1] : null;
+		List<Player> selected = new ArrayList<Player>();
+		if(type.equals("all"))
+			selected.addAll(Arrays.asList(Bukkit.getOnlinePlayers()));
+		else if(type.equals("world")){
+			World world = arg != null ? Bukkit.getWorld(arg) : sender instanceof Player ? ((Player) sender).getWorld() : null;
+			if(world == null){
+				sender.sendMessage(MessageHandler.getPrefix() + (arg != null ? "That world does not exist" : "Include a world to select players from"));
+				return null;
+			}
+			selected.addAll(world.getPlayers());
+		}
+		else if(type.equals("radius")){
+			if(!(sender instanceof Player)){
+				sender.sendMessage(MessageHandler.getPrefix() + "Only players can select players within a radius");
+				return null;
+			}
+			double radius;
+			try{
+				radius = Double.parseDouble(arg);
+			}
+			catch(Exception e){
+				sender.sendMessage(MessageHandler.getPrefix() + "Include a radius in blocks, like @radius:20");
+				return null;
+			}
+			Location center = ((Player) sender).getLocation();
+			for(Player player : center.getWorld().getPlayers())
+				if(player.getLocation().distanceSquared(center) <= radius * radius)
+					selected.add(player);
+		}
+		else if(type.equals("group")){
+			if(KitMaster.getPerms() == null || !KitMaster.getPerms().hasGroupSupport()){
+				sender.sendMessage(MessageHandler.getPrefix() + "Selecting players by group requires a permissions plugin with groups");
+				return null;
+			}
+			if(arg == null){
+				sender.sendMessage(MessageHandler.getPrefix() + "Include a group to select players from, like @group:red");
+				return null;
+			}
+			for(Player player : Bukkit.getOnlinePlayers())
+				if(KitMaster.getPerms().playerInGroup(player, arg))
+					selected.add(player);
+		}
+		else{
+			sender.sendMessage(MessageHandler.getPrefix() + "Players can be selected with @all, @world, @radius:<blocks>, or @group:<name>");
+			return null;
+		}
+		return selected;
+	}
 
 	@CommandHandler(cmd = "kitlist", permissions = "kitmaster.list", permissionMessage = "You don't have permission to view kits")
 	public void kitlist(CommandSender sender, String[] args){
 		sender.sendMessage(MessageHandler.getPrefix() + "Available kits:");
+		PermsResult[] allPerms = KitHandler.getAllKitPerms(sender);
 		for(Kit kit : KitHandler.getKits()){
-			PermsResult perms = KitHandler.getKitPerms(sender, kit);
-			if(perms.generic.bool && kit.applyParentAttributes().booleanAttribute(Attribute.SHOW_IN_LIST)){
+			PermsResult perms = allPerms[kit.ordinal];
+			if(perms.generic.bool && kit.booleanAttribute(Attribute.SHOW_IN_LIST)){
 				String message = MessageHandler.getPrefix() + " - " + kit.name;
 				if(perms.generic == GenericResult.CONDITIONAL)
 					message += " - " + perms.message;
@@ -143,6 +246,19 @@ public class KitMasterCommandHandler implements TabCompleter{
 		}
 	}
 
+	@CommandHandler(cmd = "kitstats", permissions = "kitmaster.reload", permissionMessage = "You don't have permission to view kit statistics")
+	public void kitstats(CommandSender sender, String[] args){
+		long hits = KitHandler.getPermsCacheHits(), misses = KitHandler.getPermsCacheMisses();
+		sender.sendMessage(MessageHandler.getPrefix() + "Kit catalog version " + KitMaster.getCatalog().version + " with " + KitHandler.getKits().size() + " kits");
+		sender.sendMessage(MessageHandler.getPrefix() + "Permission checks: " + hits + " cached, " + misses + " worked out" + (hits + misses > 0 ? " (" + (100 * hits / (hits + misses)) + "% cached)" : ""));
+		sender.sendMessage(MessageHandler.getPrefix() + "Kit requests: " + GrantQueue.getDebounced() + " repeats ignored, " + GrantQueue.getMerged() + " merged, " + GrantQueue.getThrottled() + " turned away by the rate limit");
+		if(KitMaster.isSQLRunning()){
+			SQLHandler sql = KitMaster.getSQL();
+			sender.sendMessage(MessageHandler.getPrefix() + "SQL writes: " + sql.getQueueDepth() + " waiting, " + sql.getWritten() + " sent in " + sql.getBatches() + " batches, " + sql.getCoalesced() + " replaced before sending");
+			sender.sendMessage(MessageHandler.getPrefix() + "SQL batch time: " + String.format("%.1f", sql.getLastFlushMillis()) + "ms last, " + String.format("%.1f", sql.getAverageFlushMillis()) + "ms average");
+		}
+	}
+
 	@CommandHandler(cmd = "itemmeta savebook", permissions = "kitmaster.meta", permissionMessage = "You don't have permission to manage item metadata")
 	public void savebook(Player player, String[] args){
 		if(player.getItemInHand().getType() != Material.WRITTEN_BOOK && player.getItemInHand().getType() != Material.BOOK_AND_QUILL){
@@ -374,10 +490,11 @@ public class KitMasterCommandHandler implements TabCompleter{
 		if(command.getName().equals("kit") || command.getName().equals("kitinfo") || (command.getName().equals("givekit") && args.length == 2)){
 			List<String> names = new ArrayList<String>();
 			String partial = args[args.length - 1];
+			PermsResult[] allPerms = KitHandler.getAllKitPerms(sender);
 			for(Kit kit : KitHandler.getKits()){
-				PermsResult perms = KitHandler.getKitPerms(sender, kit);
+				PermsResult perms = allPerms[kit.ordinal];
 				if(perms.generic == GenericResult.YES || perms == PermsResult.COMMAND_ONLY || perms == PermsResult.INHERIT_COMMAND_ONLY)
-					if(kit.applyParentAttributes().booleanAttribute(Attribute.SHOW_IN_LIST))
+					if(kit.booleanAttribute(Attribute.SHOW_IN_LIST))
 						if(partial.isEmpty() || kit.name.toLowerCase().startsWith(partial.toLowerCase()))
 							names.add(kit.name);
 			}
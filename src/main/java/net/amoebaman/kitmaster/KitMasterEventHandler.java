@@ -5,17 +5,20 @@ import java.util.List;
 
 import net.amoebaman.amoebautils.S_Loc;
 import net.amoebaman.kitmaster.controllers.ItemController;
+import net.amoebaman.kitmaster.controllers.ItemScorer;
 import net.amoebaman.kitmaster.enums.Attribute;
 import net.amoebaman.kitmaster.enums.ClearKitsContext;
 import net.amoebaman.kitmaster.enums.GiveKitContext;
-import net.amoebaman.kitmaster.enums.GiveKitResult;
+import net.amoebaman.kitmaster.handlers.GrantQueue;
 import net.amoebaman.kitmaster.handlers.HistoryHandler;
 import net.amoebaman.kitmaster.handlers.KitHandler;
 import net.amoebaman.kitmaster.handlers.MessageHandler;
+import net.amoebaman.kitmaster.handlers.PermissionHandler;
 import net.amoebaman.kitmaster.handlers.SignHandler;
 import net.amoebaman.kitmaster.handlers.TimeStampHandler;
 import net.amoebaman.kitmaster.objects.Kit;
 import net.amoebaman.kitmaster.sql.SQLQueries;
+import net.amoebaman.kitmaster.utilities.KitPermissionsChangeEvent;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
@@ -52,9 +55,7 @@ public class KitMasterEventHandler implements Listener {
 		if (event.getAction() == Action.LEFT_CLICK_BLOCK) {
 			Kit kit = SignHandler.getKitSign(event.getClickedBlock().getLocation());
 			if (kit != null) {
-				GiveKitResult result = Actions.giveKit(event.getPlayer(), kit, GiveKitContext.SIGN_TAKEN);
-				if (KitMaster.DEBUG_KITS)
-					KitMaster.logger().info("Result: " + result.name());
+				GrantQueue.submit(event.getPlayer(), kit, GiveKitContext.SIGN_TAKEN);
 			}
 			else if(event.getClickedBlock().getState() instanceof Sign && KitMaster.plugin().getConfig().getBoolean("fix-signs-mode", false)){
 				for(int i = 0; i < 4; i++){
@@ -121,11 +122,11 @@ public class KitMasterEventHandler implements Listener {
 		Kit respawnKit = null;
 		for (Kit kit : KitHandler.getKits())
 			if (player.isPermissionSet("kitmaster.respawn." + kit.name) && player.hasPermission("kitmaster.respawn." + kit.name)) {
-				respawnKit = kit.applyParentAttributes();
+				respawnKit = kit;
 				break;
 			}
 		if (respawnKit != null) {
-			final Kit fRespawnKit = respawnKit.clone();
+			final Kit fRespawnKit = respawnKit;
 			Bukkit.getScheduler().scheduleSyncDelayedTask(KitMaster.plugin(), new Runnable() {
 				public void run() {
 					Actions.giveKit(player, fRespawnKit, GiveKitContext.PLUGIN_GIVEN_OVERRIDE);
@@ -175,6 +176,26 @@ public class KitMasterEventHandler implements Listener {
 	public void clearKitsWhenPlayerQuits(PlayerQuitEvent event) {
 		if (KitMaster.config().getBoolean("clearKits.onDisconnect", true))
 			Actions.clearAll(event.getPlayer(), true, ClearKitsContext.PLAYER_DISCONNECT);
+		HistoryHandler.unload(event.getPlayer());
+		KitHandler.forgetPerms(event.getPlayer());
+		PermissionHandler.unload(event.getPlayer());
+		ItemScorer.forget(event.getPlayer());
+		GrantQueue.unload(event.getPlayer());
+		TimeStampHandler.unload(event.getPlayer());
+	}
+	
+	@EventHandler
+	public void restorePermsWhenPlayerJoins(PlayerJoinEvent event) {
+		KitHandler.forgetPerms(event.getPlayer());
+		PermissionHandler.restore(event.getPlayer());
+	}
+	
+	@EventHandler
+	public void forgetPermsWhenPermsChange(KitPermissionsChangeEvent event) {
+		if (event.getPlayer() == null)
+			KitHandler.forgetAllPerms();
+		else
+			KitHandler.forgetPerms(event.getPlayer());
 	}
 	
 	@EventHandler
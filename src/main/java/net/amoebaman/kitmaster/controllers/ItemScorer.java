@@ -0,0 +1,129 @@
+package net.amoebaman.kitmaster.controllers;
+
+import java.util.HashMap;
+
+import net.amoebaman.kitmaster.objects.MaterialTable;
+
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Scores armor and weapons so that auto-equipping them is a single numeric comparison.
+ * An item's tier always comes first, as it always has, then its enchantments break ties between items of the same tier, and then its remaining durability.
+ * Kit items are scored when their kit is planned, and the scores of players' equipped items are remembered until the items change.
+ *
+ * @author Dennison
+ */
+public class ItemScorer {
+
+	/** The score of anything that isn't armor or a weapon, which any armor or weapon will replace */
+	public static final long NONE = Long.MIN_VALUE;
+
+	/** The slot number used for the held item, after the four armor slots */
+	public static final int HELD_SLOT = 4;
+
+	private static final long TIER = 1000000L, ENCHANTMENT = 1000L, MAX_ENCHANTMENT = 999, MAX_DURABILITY = 999;
+
+	private static final HashMap<String, ScoredSlot[]> equipped = new HashMap<String, ScoredSlot[]>();
+
+	/**
+	 * Scores an item as armor.
+	 * @param stack the item
+	 * @return the item's score, or NONE if it isn't armor
+	 */
+	public static long scoreArmor(ItemStack stack){
+		if(stack == null || !MaterialTable.get().isArmor(stack.getType()))
+			return NONE;
+		return score(stack, MaterialTable.get().of(stack.getType()).armorLevel.ordinal());
+	}
+
+	/**
+	 * Scores an item as a weapon.  Weapons of a better type always beat weapons of a worse type, and level only matters between weapons of the same type.
+	 * @param stack the item
+	 * @return the item's score, or NONE if it isn't a weapon
+	 */
+	public static long scoreWeapon(ItemStack stack){
+		if(stack == null || !MaterialTable.get().isWeapon(stack.getType()))
+			return NONE;
+		MaterialTable.Entry entry = MaterialTable.get().of(stack.getType());
+		return score(stack, entry.weaponType.ordinal() * 100 + entry.weaponLevel.ordinal());
+	}
+
+	private static long score(ItemStack stack, int tier){
+		long enchantments = 0;
+		for(int level : stack.getEnchantments().values())
+			enchantments += level;
+		long durability = MAX_DURABILITY;
+		short max = stack.getType().getMaxDurability();
+		if(max > 0)
+			durability = Math.max(0, max - stack.getDurability()) * MAX_DURABILITY / max;
+		return tier * TIER + Math.min(enchantments, MAX_ENCHANTMENT) * ENCHANTMENT + durability;
+	}
+
+	/**
+	 * Gets the score of an item a player has equipped, remembering it until the item changes.
+	 * @param player the player
+	 * @param slot the slot the item is in, which is its index in the armor contents or HELD_SLOT
+	 * @param stack the item in the slot
+	 * @return the item's score
+	 */
+	public static long getEquippedScore(Player player, int slot, ItemStack stack){
+		ScoredSlot[] slots = equipped.get(player.getName());
+		if(slots != null && slots[slot] != null && slots[slot].matches(stack))
+			return slots[slot].score;
+		long score = slot == HELD_SLOT ? scoreWeapon(stack) : scoreArmor(stack);
+		remember(player, slot, stack, score);
+		return score;
+	}
+
+	/**
+	 * Remembers the score of an item a player has just had equipped.
+	 * @param player the player
+	 * @param slot the slot the item is in, which is its index in the armor contents or HELD_SLOT
+	 * @param stack the item
+	 * @param score the item's score
+	 */
+	public static void remember(Player player, int slot, ItemStack stack, long score){
+		ScoredSlot[] slots = equipped.get(player.getName());
+		if(slots == null){
+			slots = new ScoredSlot[HELD_SLOT + 1];
+			equipped.put(player.getName(), slots);
+		}
+		slots[slot] = new ScoredSlot(stack == null ? null : stack.clone(), score);
+	}
+
+	/**
+	 * Forgets the scores remembered for a player, for when they leave.
+	 * @param player the player
+	 */
+	public static void forget(OfflinePlayer player){
+		equipped.remove(player.getName());
+	}
+
+	/**
+	 * Forgets every remembered score, for when kits or the configuration are reloaded.
+	 */
+	public static void forgetAll(){
+		equipped.clear();
+	}
+
+	private static class ScoredSlot{
+
+		private final ItemStack stack;
+		private final long score;
+
+		public ScoredSlot(ItemStack stack, long score){
+			this.stack = stack;
+			this.score = score;
+		}
+
+		public boolean matches(ItemStack other){
+			if(stack == null || other == null)
+				return stack == other;
+			return stack.equals(other);
+		}
+
+	}
+
+}
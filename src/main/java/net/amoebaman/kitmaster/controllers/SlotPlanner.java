@@ -0,0 +1,247 @@
+package net.amoebaman.kitmaster.controllers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import net.amoebaman.kitmaster.objects.Armor;
+import net.amoebaman.kitmaster.objects.Armor.ArmorType;
+import net.amoebaman.kitmaster.objects.GivePlan;
+
+import org.bukkit.Material;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+
+/**
+ * Works out where items go in a player's inventory against a copy of its contents, and then writes the result back all at once.
+ * Nothing in the player's actual inventory changes until commit() is called.
+ *
+ * @author Dennison
+ */
+@SuppressWarnings("deprecation")
+public class SlotPlanner {
+
+	private static final int MAX_SLOT_INDEX = 35;
+
+	private final Player player;
+
+	/** The planned contents of the player's inventory, and of their armor slots in the order boots, leggings, chestplate, helmet */
+	private final ItemStack[] contents, armor;
+
+	/** The slot of the player's held item */
+	private final int held;
+
+	/** The items that didn't fit */
+	private final List<ItemStack> overflow = new ArrayList<ItemStack>();
+
+	/** The slots holding each material, lowest first, or null until an item is upgraded */
+	private EnumMap<Material, TreeSet<Integer>> index = null;
+
+	/** The scores of the equipped armor and held item, or null where they haven't been needed yet */
+	private final Long[] scores = new Long[ItemScorer.HELD_SLOT + 1];
+
+	private boolean contentsChanged = false, armorChanged = false;
+
+	/**
+	 * Starts planning placements in a player's inventory, from a copy of what it holds now.
+	 * @param player the player
+	 */
+	public SlotPlanner(Player player){
+		this.player = player;
+		PlayerInventory inv = player.getInventory();
+		contents = inv.getContents();
+		armor = inv.getArmorContents();
+		held = inv.getHeldItemSlot();
+	}
+
+	/**
+	 * Plans the placement of one of a kit's planned items.
+	 * @param placement the planned item
+	 * @param stack the item to place, which is the planned item itself unless it has been copied to be personalized or upgraded
+	 * @param upgrade whether the item should upgrade a matching item already in the inventory
+	 */
+	public void place(GivePlan.Placement placement, ItemStack stack, boolean upgrade){
+		switch(placement.route){
+			case ARMOR:
+				if(equipArmor(placement.armor.getType(), stack, placement.score))
+					return;
+				break;
+			case WEAPON:
+				if(equipWeapon(stack, placement.score))
+					return;
+				break;
+			default:
+		}
+		if(stack == placement.stack)
+			for(ItemStack part : placement.parts)
+				addToSlot(part, false);
+		else
+			add(stack, upgrade, false, placement.maxStackSize);
+	}
+
+	/**
+	 * Plans the placement of an item, working out where it goes from its type and the configuration.
+	 * @param stack the item to place, which may be modified
+	 * @param route where the item goes
+	 * @param upgrade whether the item should upgrade a matching item already in the inventory
+	 * @param reverse whether the item should be put in the last empty slot of the inventory instead of the first
+	 * @param maxStackSize the largest stack the item can be added in
+	 */
+	public void place(ItemStack stack, GivePlan.Route route, boolean upgrade, boolean reverse, int maxStackSize){
+		if(route == GivePlan.Route.ARMOR && equipArmor(new Armor(stack).getType(), stack, ItemScorer.scoreArmor(stack)))
+			return;
+		if(route == GivePlan.Route.WEAPON && equipWeapon(stack, ItemScorer.scoreWeapon(stack)))
+			return;
+		add(stack, upgrade, reverse, maxStackSize);
+	}
+
+	/*
+	 * Armor and weapons are only equipped if they score at least as well as what's already there
+	 * Whatever they replace is discarded, as it always has been
+	 */
+	private boolean equipArmor(ArmorType type, ItemStack stack, long score){
+		int slot = armor.length - 1 - type.ordinal();
+		if(score >= equippedScore(slot, armor[slot])){
+			armor[slot] = stack;
+			armorChanged = true;
+			scores[slot] = score;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean equipWeapon(ItemStack stack, long score){
+		if(score >= equippedScore(ItemScorer.HELD_SLOT, contents[held])){
+			setSlot(held, stack);
+			scores[ItemScorer.HELD_SLOT] = score;
+			return true;
+		}
+		return false;
+	}
+
+	private long equippedScore(int slot, ItemStack stack){
+		if(scores[slot] == null)
+			scores[slot] = ItemScorer.getEquippedScore(player, slot, stack);
+		return scores[slot];
+	}
+
+	private void add(ItemStack stack, boolean upgrade, boolean reverse, int maxStackSize){
+		if(upgrade)
+			upgrade(stack);
+		if(stack.getAmount() <= maxStackSize || maxStackSize == 64)
+			addToSlot(stack, reverse);
+		else
+			for(int amount = stack.getAmount(); amount > 0; amount -= maxStackSize){
+				ItemStack part = stack.clone();
+				part.setAmount(Math.min(amount, maxStackSize));
+				addToSlot(part, reverse);
+			}
+	}
+
+	private void addToSlot(ItemStack stack, boolean reverse){
+		int slot = -1;
+		if(reverse){
+			for(int i = Math.min(MAX_SLOT_INDEX, contents.length - 1); i >= 0 && slot == -1; i--)
+				if(isEmpty(contents[i]))
+					slot = i;
+		}
+		else
+			for(int i = 0; i < contents.length && slot == -1; i++)
+				if(isEmpty(contents[i]))
+					slot = i;
+		if(slot == -1)
+			overflow.add(stack);
+		else
+			setSlot(slot, stack);
+	}
+
+	/*
+	 * An upgrade replaces every stack of the same material with the new item, if the first of them has the same data
+	 * The new item keeps the larger of the two amounts, and the higher level of every enchantment on either item
+	 */
+	private void upgrade(ItemStack stack){
+		if(index == null){
+			index = new EnumMap<Material, TreeSet<Integer>>(Material.class);
+			for(int i = 0; i < contents.length; i++)
+				indexSlot(i);
+		}
+		TreeSet<Integer> slots = index.get(stack.getType());
+		if(slots == null || slots.isEmpty())
+			return;
+		ItemStack existing = contents[slots.first()];
+		if(existing.getData().getData() != stack.getData().getData())
+			return;
+		for(int slot : slots.toArray(new Integer[slots.size()]))
+			setSlot(slot, null);
+		if(existing.getAmount() > stack.getAmount() && stack.getAmount() > 0)
+			stack.setAmount(existing.getAmount());
+		for(Map.Entry<Enchantment, Integer> enc : existing.getEnchantments().entrySet())
+			if(enc.getValue() > stack.getEnchantmentLevel(enc.getKey()))
+				stack.addUnsafeEnchantment(enc.getKey(), enc.getValue());
+	}
+
+	private void setSlot(int slot, ItemStack stack){
+		if(index != null && !isEmpty(contents[slot]))
+			index.get(contents[slot].getType()).remove(slot);
+		contents[slot] = stack;
+		contentsChanged = true;
+		if(slot == held)
+			scores[ItemScorer.HELD_SLOT] = null;
+		if(index != null)
+			indexSlot(slot);
+	}
+
+	private void indexSlot(int slot){
+		if(isEmpty(contents[slot]))
+			return;
+		TreeSet<Integer> slots = index.get(contents[slot].getType());
+		if(slots == null){
+			slots = new TreeSet<Integer>();
+			index.put(contents[slot].getType(), slots);
+		}
+		slots.add(slot);
+	}
+
+	private static boolean isEmpty(ItemStack stack){
+		return stack == null || stack.getType() == Material.AIR;
+	}
+
+	/**
+	 * Writes the planned contents back to the player's inventory, with one call for the inventory and one for the armor slots.
+	 * Items that didn't fit are dropped at the player's feet, so they aren't lost.
+	 * @return the items that didn't fit in the inventory and were dropped, see getOverflow()
+	 */
+	public List<ItemStack> commit(){
+		PlayerInventory inv = player.getInventory();
+		if(contentsChanged)
+			inv.setContents(contents);
+		if(armorChanged)
+			inv.setArmorContents(armor);
+		for(ItemStack stack : overflow)
+			player.getWorld().dropItemNaturally(player.getLocation(), stack);
+		/*
+		 * Whatever was equipped has already been scored, so remember it for next time
+		 */
+		for(int slot = 0; slot < armor.length; slot++)
+			if(scores[slot] != null)
+				ItemScorer.remember(player, slot, armor[slot], scores[slot]);
+		if(scores[ItemScorer.HELD_SLOT] != null)
+			ItemScorer.remember(player, ItemScorer.HELD_SLOT, contents[held], scores[ItemScorer.HELD_SLOT]);
+		contentsChanged = armorChanged = false;
+		return getOverflow();
+	}
+
+	/**
+	 * Gets the items that were planned but didn't fit in the inventory, and so are dropped at the player's feet when the plan is committed.
+	 * @return an unmodifiable list of the items that didn't fit
+	 */
+	public List<ItemStack> getOverflow(){
+		return Collections.unmodifiableList(overflow);
+	}
+
+}
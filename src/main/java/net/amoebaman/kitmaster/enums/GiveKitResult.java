@@ -41,6 +41,11 @@ public enum GiveKitResult {
 	 * The kit was not given because it was null
 	 */
 	FAIL_NULL_KIT,
+	
+	/**
+	 * The kit was not given because it was asked for again too soon, or too many kits were being given at once
+	 */
+	FAIL_THROTTLED,
 	;
 	
 }
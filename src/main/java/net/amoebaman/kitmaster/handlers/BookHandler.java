@@ -2,6 +2,8 @@ package net.amoebaman.kitmaster.handlers;
 
 import java.util.List;
 
+import net.amoebaman.kitmaster.KitMaster;
+
 import org.bukkit.Material;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.inventory.ItemStack;
@@ -11,14 +13,16 @@ import com.google.common.collect.Lists;
 
 public class BookHandler {
 
-	public static ConfigurationSection yaml;
+	private static ConfigurationSection yaml(){
+		return KitMaster.getCatalog().books;
+	}
 	
 	private static ConfigurationSection getSection(String name){
-		ConfigurationSection section = yaml.getConfigurationSection(name);
+		ConfigurationSection section = yaml().getConfigurationSection(name);
 		if(section == null)
-			for(String key : yaml.getKeys(false))
+			for(String key : yaml().getKeys(false))
 				if(key.equalsIgnoreCase(name))
-					section = yaml.getConfigurationSection(key);
+					section = yaml().getConfigurationSection(key);
 		return section;
 	}
 
@@ -30,7 +34,7 @@ public class BookHandler {
 		if(book.getType() != Material.WRITTEN_BOOK && book.getType() != Material.BOOK_AND_QUILL)
 			return;
 		BookMeta meta = (BookMeta) book.getItemMeta();
-		ConfigurationSection bookYaml = yaml.createSection(name);
+		ConfigurationSection bookYaml = yaml().createSection(name);
 		bookYaml.set("title", meta.getTitle());
 		bookYaml.set("author", meta.getAuthor());
 		List<String> pages = Lists.newArrayList(meta.getPages());
@@ -65,7 +69,7 @@ public class BookHandler {
 	}
 	
 	public static String getBookName(ItemStack book){
-		for(String name : yaml.getKeys(false))
+		for(String name : yaml().getKeys(false))
 			if(getBook(name).getItemMeta().equals(book.getItemMeta()))
 				return name;
 		return null;
@@ -3,6 +3,7 @@ package net.amoebaman.kitmaster.handlers;
 import java.util.ArrayList;
 import java.util.List;
 
+import net.amoebaman.kitmaster.KitMaster;
 import net.amoebaman.kitmaster.controllers.ItemController;
 import net.amoebaman.kitmaster.utilities.ParseItemException;
 
@@ -13,14 +14,16 @@ import org.bukkit.inventory.meta.ItemMeta;
 
 public class CustomItemHandler {
 	
-	public static ConfigurationSection yaml;
+	private static ConfigurationSection yaml(){
+		return KitMaster.getCatalog().items;
+	}
 	
 	private static ConfigurationSection getSection(String name){
-		ConfigurationSection section = yaml.getConfigurationSection(name);
+		ConfigurationSection section = yaml().getConfigurationSection(name);
 		if(section == null)
-			for(String key : yaml.getKeys(false))
+			for(String key : yaml().getKeys(false))
 				if(key.equalsIgnoreCase(name))
-					section = yaml.getConfigurationSection(key);
+					section = yaml().getConfigurationSection(key);
 		return section;
 	}
 	
@@ -29,7 +32,7 @@ public class CustomItemHandler {
 	}
 	
 	public static void saveCustomItem(ItemStack stack, String name){
-		ConfigurationSection section = yaml.createSection(name);
+		ConfigurationSection section = yaml().createSection(name);
 		section.set("item", ItemController.itemToString(stack, false));
 		ItemMeta meta = stack.getItemMeta();
 		section.set("name", meta.getDisplayName());
@@ -1,5 +1,6 @@
 package net.amoebaman.kitmaster.handlers;
 
+import net.amoebaman.kitmaster.KitMaster;
 import net.amoebaman.kitmaster.controllers.ItemController;
 
 import org.bukkit.Material;
@@ -10,14 +11,16 @@ import org.bukkit.potion.PotionEffect;
 
 public class CustomPotionHandler {
 
-	public static ConfigurationSection yaml;
+	private static ConfigurationSection yaml(){
+		return KitMaster.getCatalog().potions;
+	}
 	
 	private static ConfigurationSection getSection(String name){
-		ConfigurationSection section = yaml.getConfigurationSection(name);
+		ConfigurationSection section = yaml().getConfigurationSection(name);
 		if(section == null)
-			for(String key : yaml.getKeys(false))
+			for(String key : yaml().getKeys(false))
 				if(key.equalsIgnoreCase(name))
-					section = yaml.getConfigurationSection(key);
+					section = yaml().getConfigurationSection(key);
 		return section;
 	}
 
@@ -29,7 +32,7 @@ public class CustomPotionHandler {
 		if(potion.getType() != Material.POTION)
 			return;
 		PotionMeta meta = (PotionMeta) potion.getItemMeta();
-		ConfigurationSection potionYaml = yaml.createSection(name);
+		ConfigurationSection potionYaml = yaml().createSection(name);
 		for(int i = 0; i < meta.getCustomEffects().size(); i++){
 			PotionEffect effect = meta.getCustomEffects().get(i);
 			ConfigurationSection effectYaml = potionYaml.createSection("effect_" + i);
@@ -64,7 +67,7 @@ public class CustomPotionHandler {
 	}
 	
 	public static String getPotionName(ItemStack potion){
-		for(String name : yaml.getKeys(false))
+		for(String name : yaml().getKeys(false))
 			if(getPotion(name).getItemMeta().equals(potion.getItemMeta()))
 				return name;
 		return null;
@@ -3,6 +3,8 @@ package net.amoebaman.kitmaster.handlers;
 import java.util.ArrayList;
 import java.util.List;
 
+import net.amoebaman.kitmaster.KitMaster;
+
 import org.bukkit.Color;
 import org.bukkit.FireworkEffect;
 import org.bukkit.FireworkEffect.Type;
@@ -10,14 +12,16 @@ import org.bukkit.configuration.ConfigurationSection;
 
 public class FireworkEffectHandler {
 
-	public static ConfigurationSection yaml;
+	private static ConfigurationSection yaml(){
+		return KitMaster.getCatalog().bursts;
+	}
 	
 	private static ConfigurationSection getSection(String name){
-		ConfigurationSection section = yaml.getConfigurationSection(name);
+		ConfigurationSection section = yaml().getConfigurationSection(name);
 		if(section == null)
-			for(String key : yaml.getKeys(false))
+			for(String key : yaml().getKeys(false))
 				if(key.equalsIgnoreCase(name))
-					section = yaml.getConfigurationSection(key);
+					section = yaml().getConfigurationSection(key);
 		return section;
 	}
 
@@ -26,7 +30,7 @@ public class FireworkEffectHandler {
 	}
 	
 	public static void saveFirework(FireworkEffect firework, String name){
-		ConfigurationSection effectYaml = yaml.createSection(name);
+		ConfigurationSection effectYaml = yaml().createSection(name);
 		effectYaml.set("type", firework.getType().name().toLowerCase());
 		effectYaml.set("trail", firework.hasTrail());
 		effectYaml.set("flicker", firework.hasFlicker());
@@ -58,7 +62,7 @@ public class FireworkEffectHandler {
 	}
 	
 	public static String getEffectName(FireworkEffect effect){
-		for(String name : yaml.getKeys(false))
+		for(String name : yaml().getKeys(false))
 			if(getFirework(name).equals(effect))
 				return name;
 		return null;
@@ -13,14 +13,16 @@ import org.bukkit.inventory.meta.FireworkMeta;
 
 public class FireworkHandler {
 
-	public static ConfigurationSection yaml;
+	private static ConfigurationSection yaml(){
+		return KitMaster.getCatalog().fireworks;
+	}
 	
 	private static ConfigurationSection getSection(String name){
-		ConfigurationSection section = yaml.getConfigurationSection(name);
+		ConfigurationSection section = yaml().getConfigurationSection(name);
 		if(section == null)
-			for(String key : yaml.getKeys(false))
+			for(String key : yaml().getKeys(false))
 				if(key.equalsIgnoreCase(name))
-					section = yaml.getConfigurationSection(key);
+					section = yaml().getConfigurationSection(key);
 		return section;
 	}
 
@@ -32,7 +34,7 @@ public class FireworkHandler {
 		if(firework.getType() != Material.FIREWORK)
 			return;
 		FireworkMeta meta = (FireworkMeta) firework.getItemMeta();
-		ConfigurationSection fireworkYaml = yaml.createSection(name);
+		ConfigurationSection fireworkYaml = yaml().createSection(name);
 		fireworkYaml.set("fuse", meta.getPower());
 		List<String> bursts = new ArrayList<String>();
 		for(int i = 0; i < meta.getEffectsSize(); i++){
@@ -70,7 +72,7 @@ public class FireworkHandler {
 	}
 	
 	public static String getFireworkName(ItemStack firework){
-		for(String name : yaml.getKeys(false))
+		for(String name : yaml().getKeys(false))
 			if(getFirework(name).getItemMeta().equals(firework.getItemMeta()))
 				return name;
 		return null;
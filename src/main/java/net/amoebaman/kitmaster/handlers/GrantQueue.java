@@ -0,0 +1,199 @@
+package net.amoebaman.kitmaster.handlers;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.amoebaman.kitmaster.Actions;
+import net.amoebaman.kitmaster.KitMaster;
+import net.amoebaman.kitmaster.enums.GiveKitContext;
+import net.amoebaman.kitmaster.enums.GiveKitResult;
+import net.amoebaman.kitmaster.objects.Kit;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Queues the kits players ask for from signs and commands, so that each player's requests are handled one at a time.
+ * Asking for the same kit again within the debounce window is ignored, asking for a kit that is already waiting is merged into the waiting request,
+ * and the kits given across the whole server are limited by a token bucket.
+ * Everything here happens on the main thread.
+ *
+ * @author Dennison
+ */
+public class GrantQueue {
+
+	private static final HashMap<String, PlayerQueue> queues = new HashMap<String, PlayerQueue>();
+
+	private static final AtomicLong debounced = new AtomicLong(), merged = new AtomicLong(), throttled = new AtomicLong();
+
+	private static double tokens = -1;
+	private static long lastRefill = 0;
+
+	/**
+	 * Asks for a kit on behalf of a player.  The kit is given once the player's earlier requests have been handled.
+	 * @param player The player.
+	 * @param kit The kit.
+	 * @param context The context the kit is being asked for in.
+	 * @return A future that will hold the result, which is FAIL_THROTTLED if the request was ignored or turned away.
+	 */
+	public static ListenableFuture<GiveKitResult> submit(Player player, Kit kit, GiveKitContext context){
+		PlayerQueue queue = queues.get(player.getName());
+		if(queue == null){
+			queue = new PlayerQueue();
+			queues.put(player.getName(), queue);
+		}
+		/*
+		 * Repeated requests for the same kit within the debounce window are dropped without doing anything, since they're almost always a player punching a sign over and over
+		 */
+		long now = System.currentTimeMillis();
+		Long last = queue.lastRequested.get(kit.ordinal);
+		if(last != null && now - last < KitMaster.config().getLong("grants.debounce", 500)){
+			debounced.incrementAndGet();
+			return Futures.immediateFuture(GiveKitResult.FAIL_THROTTLED);
+		}
+		/*
+		 * Only accepted requests restart the window, so clicking faster than the window can't lock a player out
+		 */
+		queue.lastRequested.put(kit.ordinal, now);
+		/*
+		 * If the same kit is already waiting to be given in the same way, the new request shares its result
+		 */
+		for(Request waiting : queue.waiting)
+			if(waiting.kit.ordinal == kit.ordinal && waiting.context == context){
+				merged.incrementAndGet();
+				return waiting.result;
+			}
+		Request request = new Request(kit, context);
+		queue.waiting.add(request);
+		pump(player, queue);
+		return request.result;
+	}
+
+	/*
+	 * Starts on the player's next request if they have one and nothing is being given to them already
+	 */
+	private static void pump(final Player player, final PlayerQueue queue){
+		while(!queue.busy && !queue.waiting.isEmpty()){
+			final Request request = queue.waiting.poll();
+			if(!player.isOnline()){
+				request.result.set(GiveKitResult.FAIL_CANCELLED);
+				continue;
+			}
+			if(!takeToken()){
+				throttled.incrementAndGet();
+				player.sendMessage(MessageHandler.getMessage("take_kit.misc.fail_throttled", "Kits are being handed out too quickly, try again in a moment"));
+				request.result.set(GiveKitResult.FAIL_THROTTLED);
+				continue;
+			}
+			queue.busy = true;
+			Futures.addCallback(Actions.giveKitAsync(player, request.kit, request.context), new FutureCallback<GiveKitResult>(){
+				public void onSuccess(GiveKitResult result){
+					finish(result, null);
+				}
+				public void onFailure(Throwable t){
+					finish(null, t);
+				}
+				private void finish(final GiveKitResult result, final Throwable t){
+					if(!Bukkit.isPrimaryThread()){
+						Bukkit.getScheduler().runTask(KitMaster.plugin(), new Runnable(){ public void run(){
+							finish(result, t);
+						}});
+						return;
+					}
+					queue.busy = false;
+					if(t != null)
+						request.result.setException(t);
+					else
+						request.result.set(result);
+					pump(player, queue);
+				}
+			});
+		}
+	}
+
+	/*
+	 * The bucket holds up to grants.burst tokens and refills at grants.perSecond tokens per second
+	 */
+	private static boolean takeToken(){
+		double perSecond = KitMaster.config().getDouble("grants.perSecond", 20);
+		double burst = KitMaster.config().getDouble("grants.burst", 40);
+		if(perSecond <= 0)
+			return true;
+		long now = System.nanoTime();
+		if(tokens < 0)
+			tokens = burst;
+		else
+			tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * perSecond);
+		lastRefill = now;
+		if(tokens < 1)
+			return false;
+		tokens--;
+		return true;
+	}
+
+	/**
+	 * Forgets a player's queue when they leave.  Anything still waiting is not given.
+	 * @param player The player.
+	 */
+	public static void unload(OfflinePlayer player){
+		PlayerQueue queue = queues.remove(player.getName());
+		if(queue != null){
+			for(Request request : queue.waiting)
+				request.result.set(GiveKitResult.FAIL_CANCELLED);
+			queue.waiting.clear();
+		}
+	}
+
+	/**
+	 * Gets how many requests have been dropped for repeating a recent request.
+	 * @return The count.
+	 */
+	public static long getDebounced(){
+		return debounced.get();
+	}
+
+	/**
+	 * Gets how many requests have been merged into an identical request that was already waiting.
+	 * @return The count.
+	 */
+	public static long getMerged(){
+		return merged.get();
+	}
+
+	/**
+	 * Gets how many requests have been turned away by the server-wide limit.
+	 * @return The count.
+	 */
+	public static long getThrottled(){
+		return throttled.get();
+	}
+
+	private static class PlayerQueue{
+
+		private final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+		private final HashMap<Integer, Long> lastRequested = new HashMap<Integer, Long>();
+		private boolean busy = false;
+
+	}
+
+	private static class Request{
+
+		private final Kit kit;
+		private final GiveKitContext context;
+		private final SettableFuture<GiveKitResult> result = SettableFuture.create();
+
+		public Request(Kit kit, GiveKitContext context){
+			this.kit = kit;
+			this.context = context;
+		}
+
+	}
+
+}
@@ -4,81 +4,142 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.amoebaman.kitmaster.KitMaster;
 import net.amoebaman.kitmaster.objects.Kit;
+import net.amoebaman.kitmaster.objects.KitRegistry;
 import net.amoebaman.kitmaster.sql.SQLQueries;
 
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.configuration.file.YamlConfiguration;
 
-import com.google.common.collect.Lists;
-
 
 public class HistoryHandler {
 	
-	private static YamlConfiguration yamlConfig;
+	/*
+	 * Histories are held in memory by kit ordinal, and only converted to and from kit names when they are stored
+	 * With flat files the whole history file lives here, with SQL this is a write-through cache of online players
+	 */
+	private static final ConcurrentHashMap<String, KitHistory> histories = new ConcurrentHashMap<String, KitHistory>();
 	
 	public static void load(File file) throws IOException{
-		yamlConfig = YamlConfiguration.loadConfiguration(file);
+		YamlConfiguration yamlConfig = YamlConfiguration.loadConfiguration(file);
+		histories.clear();
+		for(String player : yamlConfig.getKeys(false))
+			histories.put(player, KitHistory.fromNames(yamlConfig.getStringList(player)));
 	}
 	
 	public static void save(File file) throws IOException{
+		YamlConfiguration yamlConfig = new YamlConfiguration();
+		for(String player : histories.keySet())
+			yamlConfig.set(player, histories.get(player).toNames());
 		yamlConfig.save(file);
 	}
 	
-	private static List<Kit> toKitList(List<String> stringList){
-		List<Kit> kitList = new ArrayList<Kit>();
-		for(String kitName : stringList)
-			if(KitHandler.isKit(kitName))
-				kitList.add(KitHandler.getKit(kitName));
-		return kitList;
+	private static KitHistory history(OfflinePlayer player){
+		KitHistory history = histories.get(player.getName());
+		if(history == null){
+			if(KitMaster.isSQLRunning())
+				history = fetch(player);
+			else
+				history = new KitHistory();
+		}
+		return history;
+	}
+	
+	/*
+	 * Fetches a player's history from the database and caches it, unless another thread cached it first
+	 */
+	private static KitHistory fetch(OfflinePlayer player){
+		ResultSet result = KitMaster.getSQL().executeQuery(SQLQueries.GET_HISTORY.replace(SQLQueries.PLAYER_MACRO, player.getName()));
+		String str = KitMaster.getSQL().getFirstResult(result, "history", String.class);
+		KitHistory history = str == null ? new KitHistory() : KitHistory.fromNames(Arrays.asList(str.split(",")));
+		KitHistory existing = histories.putIfAbsent(player.getName(), history);
+		return existing != null ? existing : history;
 	}
 	
-	private static List<String> toStringList(List<Kit> kitList){
-		List<String> stringList = new ArrayList<String>();
-		for(Kit kit : kitList)
-			stringList.add(kit.name);
-		return stringList;
+	/**
+	 * Fetches a player's history from the database ahead of time if it isn't cached yet, so that it won't have to be fetched on the main thread.
+	 * This is safe to call off the main thread, since it never reads a history that is already cached.  It has no effect unless using SQL.
+	 * @param player The player.
+	 */
+	public static void prefetch(OfflinePlayer player){
+		if(KitMaster.isSQLRunning() && !histories.containsKey(player.getName()))
+			fetch(player);
 	}
 	
 	public static List<Kit> getHistory(OfflinePlayer player){
-		if(KitMaster.isSQLRunning()){
-			ResultSet result = KitMaster.getSQL().executeQuery(SQLQueries.GET_HISTORY.replace(SQLQueries.PLAYER_MACRO, player.getName()));
-			String str = KitMaster.getSQL().getFirstResult(result, "history", String.class);
-			if(str == null)
-				return new ArrayList<Kit>();
-			else
-				return toKitList(Lists.newArrayList(str.split(",")));
-		}
-		else{
-			List<String> history = yamlConfig.getStringList(player.getName());
-			return toKitList(history);
-		}
+		return history(player).toKits(KitMaster.getCatalog().kits);
+	}
+	
+	/**
+	 * Tests whether a player has taken any kit that restricts the use of other kits since their history was last reset.
+	 * @param player The player.
+	 * @return True if any kit in the player's history restricts other kits.
+	 */
+	public static boolean isRestricted(OfflinePlayer player){
+		return KitMaster.getCatalog().kits.restrictsOtherKits(history(player).kits);
 	}
 	
 	public static void addToHistory(OfflinePlayer player, Kit kit){
-		List<Kit> history = getHistory(player);
+		addToHistory(player, kit, null);
+	}
+	
+	/**
+	 * Adds a kit to a player's history.  When using SQL, the kit is appended to the history in the database without reading it first.
+	 * @param player The player.
+	 * @param kit The kit.
+	 * @param transaction A list to add the SQL command to, so that it can be sent in the same transaction as others, or null to queue it on its own.
+	 */
+	public static void addToHistory(OfflinePlayer player, Kit kit, List<String> transaction){
+		KitHistory history = history(player);
+		history.add(kit.ordinal);
+		histories.put(player.getName(), history);
 		if(KitMaster.isSQLRunning()){
-			String str = "";
-			for(Kit each : history)
-				str += each.name + ",";
-			str += kit.name;
-			KitMaster.getSQL().executeCommand(SQLQueries.UPDATE_HISTORY.replace(SQLQueries.PLAYER_MACRO, player.getName()).replace(SQLQueries.HISTORY_MACRO, str), false);
-		}
-		else{
-			history.add(kit);
-			yamlConfig.set(player.getName(), toStringList(history));
+			String command = SQLQueries.APPEND_HISTORY.replace(SQLQueries.PLAYER_MACRO, player.getName()).replace(SQLQueries.KIT_MACRO, kit.name);
+			if(transaction != null)
+				transaction.add(command);
+			else
+				KitMaster.getSQL().queueCommand(command);
 		}
 	}
 	
 	public static void resetHistory(OfflinePlayer player){
-		if(KitMaster.isSQLRunning())
-			KitMaster.getSQL().executeCommand(SQLQueries.REMOVE_HISTORY.replace(SQLQueries.PLAYER_MACRO, player.getName()), false);
+		if(KitMaster.isSQLRunning()){
+			histories.put(player.getName(), new KitHistory());
+			KitMaster.getSQL().queueCommand("history:" + player.getName(), SQLQueries.REMOVE_HISTORY.replace(SQLQueries.PLAYER_MACRO, player.getName()));
+		}
 		else
-			yamlConfig.set(player.getName(), null);
+			histories.remove(player.getName());
+	}
+	
+	/**
+	 * Drops a player's cached history after they leave, once every write to it queued so far has been sent.  This only has an effect when using SQL, since the flat file history is always held in memory.
+	 * Until then the history stays cached, so a player who rejoins straight away never reads back a history the database doesn't have yet.
+	 * @param player The player.
+	 */
+	public static void unload(OfflinePlayer player){
+		if(!KitMaster.isSQLRunning())
+			return;
+		final String name = player.getName();
+		final KitHistory history = histories.get(name);
+		if(history == null)
+			return;
+		KitMaster.getSQL().queueCallback(new Runnable(){ public void run(){
+			if(KitMaster.plugin().isEnabled())
+				Bukkit.getScheduler().runTask(KitMaster.plugin(), new Runnable(){ public void run(){
+					/*
+					 * If they came back since, they'll be dropped after they next leave
+					 */
+					if(Bukkit.getPlayerExact(name) == null)
+						histories.remove(name, history);
+				}});
+		}});
 	}
 	
 	public static List<OfflinePlayer> getPlayers(){
@@ -93,7 +154,7 @@ public class HistoryHandler {
 			catch(Exception e){ e.printStackTrace(); }
 		}
 		else{
-			for(String name : yamlConfig.getKeys(false))
+			for(String name : histories.keySet())
 				players.add(Bukkit.getOfflinePlayer(name));
 		}
 		
@@ -102,4 +163,47 @@ public class HistoryHandler {
 		return players;
 	}
 	
+	/**
+	 * The kits a player has taken, in the order they were taken, along with a set of the kits for quick membership tests.
+	 */
+	private static class KitHistory{
+		
+		private int[] ordinals = new int[4];
+		private int size = 0;
+		private final BitSet kits = new BitSet();
+		
+		public static KitHistory fromNames(List<String> names){
+			KitHistory history = new KitHistory();
+			for(String name : names)
+				if(!name.isEmpty())
+					history.add(KitRegistry.ordinalOf(name));
+			return history;
+		}
+		
+		public void add(int ordinal){
+			if(size == ordinals.length)
+				ordinals = Arrays.copyOf(ordinals, size * 2);
+			ordinals[size++] = ordinal;
+			kits.set(ordinal);
+		}
+		
+		public List<Kit> toKits(KitRegistry registry){
+			List<Kit> kitList = new ArrayList<Kit>(size);
+			for(int i = 0; i < size; i++){
+				Kit kit = registry.getByOrdinal(ordinals[i]);
+				if(kit != null)
+					kitList.add(kit);
+			}
+			return kitList;
+		}
+		
+		public List<String> toNames(){
+			List<String> names = new ArrayList<String>(size);
+			for(int i = 0; i < size; i++)
+				names.add(KitRegistry.nameOf(ordinals[i]));
+			return names;
+		}
+	
+	}
+
 }
@@ -9,17 +9,25 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.amoebaman.kitmaster.KitMaster;
 import net.amoebaman.kitmaster.controllers.ItemController;
 import net.amoebaman.kitmaster.enums.Attribute;
 import net.amoebaman.kitmaster.enums.PermsResult;
 import net.amoebaman.kitmaster.objects.Kit;
+import net.amoebaman.kitmaster.objects.KitCatalog;
 import net.amoebaman.kitmaster.utilities.ParseItemException;
 
+import org.bukkit.OfflinePlayer;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.potion.PotionEffect;
 
@@ -27,36 +35,121 @@ import com.google.common.collect.Lists;
 
 public class KitHandler {
 	
-	private static final ArrayList<Kit> kits = new ArrayList<Kit>();
 	public static Kit editKit;
 	
+	private static final ConcurrentHashMap<String, CachedPerms> permsCache = new ConcurrentHashMap<String, CachedPerms>();
+	private static final AtomicLong permsHits = new AtomicLong(), permsMisses = new AtomicLong();
+	
+	/** Reads kit files in parallel, shared by every load so that reloading doesn't start new threads each time */
+	private static final ForkJoinPool loadPool = new ForkJoinPool(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+	
 	/**
 	 * Loads kits into the internal kit list from a file.  If the file is suffixed with .kit, the file will be immediately loaded.  If the file is a directory, all files within it suffixed with .kit will be automatically loaded.  If neither condition is met, nothing will happen.
 	 * @param file The file to load kits from.
 	 */
 	public static void loadKits(File file){
+		updateKits(parseKits(file));
+	}
+	
+	/**
+	 * Parses kits from a file, the same way loadKits(File) does, without registering them.  The kits are meant to be compiled into a new catalog.
+	 * <p>
+	 * When loading a directory, the files are read and parsed as YAML in parallel, but the kits are compiled from the YAML one at a time, in order of file name.
+	 * Any file that takes longer than the configured threshold to load is reported in the console.
+	 * @param file The file to load kits from.
+	 * @return The kits that were loaded, in the order they were loaded.
+	 */
+	public static List<Kit> parseKits(File file){
+		List<Kit> kits = new ArrayList<Kit>();
+		List<KitFile> loaded = new ArrayList<KitFile>();
+		long start = System.nanoTime();
 		if(file.isDirectory()){
-			ArrayList<File> children = Lists.newArrayList(file.listFiles(new FileFilter(){ public boolean accept(File file){ return file.getName().endsWith(".kit") || file.getName().equals("kits.yml"); } }));
-			Collections.sort(children, new Comparator<File>(){ public int compare(File f1, File f2) { return f1.getName().compareTo(f2.getName()); }});
-			for(File child : children)
-				loadFromKitFile(child);
+			List<File> children = getKitFiles(file);
+			/*
+			 * Reading and parsing the YAML doesn't touch Bukkit, so it can happen in parallel
+			 */
+			List<ForkJoinTask<KitFile>> tasks = new ArrayList<ForkJoinTask<KitFile>>();
+			boolean parallel = children.size() > 1 && KitMaster.config().getBoolean("loading.parallel", true);
+			for(File child : children){
+				KitFile kitFile = new KitFile(child);
+				tasks.add(parallel ? loadPool.submit(kitFile) : ForkJoinTask.adapt(kitFile));
+			}
+			/*
+			 * Building the items does touch Bukkit, so compile the kits one at a time in order
+			 */
+			for(ForkJoinTask<KitFile> task : tasks){
+				KitFile kitFile = parallel ? task.join() : task.invoke();
+				long compileStart = System.nanoTime();
+				addKit(parseKit(kitFile.file.getName().replaceAll("\\.kit", ""), kitFile.yaml), kits);
+				kitFile.compileTime = System.nanoTime() - compileStart;
+				loaded.add(kitFile);
+			}
+		}
+		else if(file.getName().equals("kits.yml") || file.getName().endsWith(".kit")){
+			KitFile kitFile = new KitFile(file).call();
+			long compileStart = System.nanoTime();
+			if(file.getName().equals("kits.yml"))
+				for(String name : kitFile.yaml.getKeys(false))
+					addKit(parseKit(name, kitFile.yaml.getConfigurationSection(name)), kits);
+			else
+				addKit(parseKit(file.getName().replaceAll("\\.kit", ""), kitFile.yaml), kits);
+			kitFile.compileTime = System.nanoTime() - compileStart;
+			loaded.add(kitFile);
 		}
-		else if(file.getName().equals("kits.yml"))
-			loadFromKitsYaml(file);
-		else if(file.getName().endsWith(".kit"))
-			loadFromKitFile(file);
+		reportLoadTimes(file, loaded, System.nanoTime() - start);
+		return kits;
 	}
 	
-	private static void loadFromKitFile(File file) {
-		String name = file.getName().replaceAll("\\.kit", "");
-		YamlConfiguration yaml = YamlConfiguration.loadConfiguration(file);
-		addKit(parseKit(name, yaml));
+	/**
+	 * Gets the files within a directory that kits will be loaded from, in the order they will be loaded.
+	 * @param dir The directory.
+	 * @return The kit files in the directory, sorted by name.
+	 */
+	public static List<File> getKitFiles(File dir){
+		File[] files = dir.listFiles(new FileFilter(){ public boolean accept(File file){ return file.getName().endsWith(".kit") || file.getName().equals("kits.yml"); } });
+		if(files == null)
+			return new ArrayList<File>();
+		ArrayList<File> children = Lists.newArrayList(files);
+		Collections.sort(children, new Comparator<File>(){ public int compare(File f1, File f2) { return f1.getName().compareTo(f2.getName()); }});
+		return children;
 	}
 	
-	private static void loadFromKitsYaml(File file){
-		YamlConfiguration yaml = YamlConfiguration.loadConfiguration(file);
-		for(String name : yaml.getKeys(false))
-			addKit(parseKit(name, yaml.getConfigurationSection(name)));
+	private static void reportLoadTimes(File source, List<KitFile> loaded, long elapsed){
+		if(loaded.isEmpty())
+			return;
+		long threshold = KitMaster.config().getLong("loading.slowKitWarning", 50);
+		List<KitFile> sorted = new ArrayList<KitFile>(loaded);
+		Collections.sort(sorted, new Comparator<KitFile>(){ public int compare(KitFile f1, KitFile f2){ return Long.valueOf(f2.totalTime()).compareTo(f1.totalTime()); }});
+		for(KitFile kitFile : sorted)
+			if(KitMaster.DEBUG_KITS || kitFile.totalTime() / 1000000 >= threshold)
+				KitMaster.logger().info("Loading " + kitFile.file.getName() + " took " + kitFile.totalTime() / 1000000 + "ms (" + kitFile.readTime / 1000000 + "ms reading, " + kitFile.compileTime / 1000000 + "ms compiling)");
+		KitMaster.logger().info("Loaded " + loaded.size() + " kit files from " + source.getPath() + " in " + elapsed / 1000000 + "ms");
+	}
+	
+	/**
+	 * A kit file that is being loaded, along with how long each stage of loading it took.
+	 */
+	private static class KitFile implements Callable<KitFile>{
+		
+		private final File file;
+		private YamlConfiguration yaml;
+		private long readTime, compileTime;
+		
+		public KitFile(File file){
+			this.file = file;
+		}
+		
+		public KitFile call(){
+			long start = System.nanoTime();
+			yaml = YamlConfiguration.loadConfiguration(file);
+			readTime = System.nanoTime() - start;
+			return this;
+		}
+		
+		public long totalTime(){
+			return readTime + compileTime;
+		}
+		
 	}
 	
 	public static boolean saveKit(Kit kit){
@@ -142,41 +235,60 @@ public class KitHandler {
 		return new Kit(name, items, effects, permissions, attributes);
 	}
 	
-	private static void addKit(Kit kit){
+	private static boolean isValidKit(Kit kit){
 		if(kit.name.length() > 50){
 			KitMaster.logger().warning("Could not load the " + kit.name + " kit - kit names must not be longer than 50 characters");
-			return;
+			return false;
 		}
 		if(kit.name.matches("[ .,<>/?;:'\"\\[\\]{}|`~!@#$%^&*()-_=+]")){
 			KitMaster.logger().warning("Could not load the " + kit.name + " kit - kit names may only contain letters and numbers");
-			return;
+			return false;
 		}
-		while(kits.contains(kit))
-			kits.remove(kit);
-		kits.add(kit);
+		return true;
+	}
+	
+	private static void addKit(Kit kit, List<Kit> kits){
+		if(isValidKit(kit))
+			kits.add(kit);
+	}
+	
+	/**
+	 * Registers a kit with the current catalog, replacing any kit with the same name.
+	 * The catalog is copied rather than modified, so readers of the old catalog are unaffected.
+	 * @param kit The kit to register.
+	 */
+	private static void addKit(Kit kit){
+		if(!isValidKit(kit))
+			return;
+		KitCatalog catalog;
+		do
+			catalog = KitMaster.getCatalog();
+		while(!KitMaster.publishCatalog(catalog, catalog.withKits(catalog.kits.with(kit))));
+	}
+	
+	/**
+	 * Redefines kits in the current catalog, replacing kits with the same names in place and registering any new ones.
+	 * Only the redefined kits and the kits that inherit from them are resolved again.
+	 * @param kits The redefined kits.
+	 */
+	public static void updateKits(List<Kit> kits){
+		List<Kit> valid = new ArrayList<Kit>();
+		for(Kit kit : kits)
+			addKit(kit, valid);
+		KitCatalog catalog;
+		do
+			catalog = KitMaster.getCatalog();
+		while(!KitMaster.publishCatalog(catalog, catalog.withKits(catalog.kits.update(valid))));
 	}
 	
 	/**
 	 * Gets a kit by its name.  This method will ignore case.  If no kit maches the argument precisely, it will consider abbreviations.
+	 * The kit returned is resolved and immutable.  Use Kit.copy() to get a version that can be modified.
 	 * @param kitName The name of the desired kit.
 	 * @return The kit whose name matches the argument, or null if no kit was found.
 	 */
 	public static Kit getKit(String kitName){
-		if(kitName == null || kitName.equals(""))
-			return null;
-		for(Kit kit : kits){
-			if(kit == null || kit.name == null)
-				continue;
-			if(kit.name.equalsIgnoreCase(kitName))
-				return kit.applyParentAttributes();
-		}
-		for(Kit kit : kits){
-			if(kit == null || kit.name == null)
-				continue;
-			if(kit.name.toLowerCase().startsWith(kitName.toLowerCase()))
-				return kit.applyParentAttributes();
-		}
-		return null;
+		return KitMaster.getCatalog().kits.get(kitName);
 	}
 	
 	/**
@@ -185,21 +297,7 @@ public class KitHandler {
 	 * @return The kit whose identifier matches the argument, or null if no kit was found.
 	 */
 	public static Kit getKitByIdentifier(String identifier){
-		if(identifier == null || identifier.equals(""))
-			return null;
-		for(Kit kit : kits){
-			if(kit == null || kit.name == null)
-				continue;
-			if(kit.stringAttribute(Attribute.IDENTIFIER).equalsIgnoreCase(identifier))
-				return kit.applyParentAttributes();
-		}
-		for(Kit kit : kits){
-			if(kit == null || kit.name == null)
-				continue;
-			if(kit.stringAttribute(Attribute.IDENTIFIER).toLowerCase().startsWith(identifier.toLowerCase()))
-				return kit.applyParentAttributes();
-		}
-		return null;
+		return KitMaster.getCatalog().kits.getByIdentifier(identifier);
 	}
 	
 	/**
@@ -213,10 +311,10 @@ public class KitHandler {
 	
 	/**
 	 * Gets the list of all registered kits.
-	 * @return The list of kits.
+	 * @return An unmodifiable list of the kits, in the order they were loaded.
 	 */
-	public static ArrayList<Kit> getKits(){
-		return kits;
+	public static List<Kit> getKits(){
+		return KitMaster.getCatalog().kits.getKits();
 	}
 	
 	/**
@@ -231,14 +329,98 @@ public class KitHandler {
 		if(kit == null)
 			return PermsResult.NULL_KIT;
 		
+		//Only players' results are cached, and only for registered kits, since modified copies may not match the registered kit
+		KitCatalog catalog = KitMaster.getCatalog();
+		if(!(sender instanceof Player) || catalog.kits.getByOrdinal(kit.ordinal) != kit)
+			return computeKitPerms(sender, kit);
+		
+		//Cached results are thrown out as soon as the kits are reloaded
+		CachedPerms cached = permsCache.get(sender.getName());
+		if(cached == null || cached.version != catalog.version){
+			cached = new CachedPerms(catalog.version, catalog.kits.getOrdinalLimit());
+			permsCache.put(sender.getName(), cached);
+		}
+		PermsResult result = cached.results[kit.ordinal];
+		if(result != null){
+			permsHits.incrementAndGet();
+			return result;
+		}
+		permsMisses.incrementAndGet();
+		result = computeKitPerms(sender, kit);
+		cached.results[kit.ordinal] = result;
+		return result;
+	}
+	
+	private static PermsResult computeKitPerms(CommandSender sender, Kit kit){
+		
+		//Work down the line of inheritance from the oldest ancestor, so each kit can build on its parent's result
+		List<Kit> lineage = kit.getLineage();
+		StarPerms stars = new StarPerms(sender);
+		PermsResult result = null;
+		for(int i = lineage.size() - 1; i >= 0; i--)
+			result = getKitPerms(sender, lineage.get(i), result, stars);
+		return result;
+	}
+	
+	/**
+	 * Tests a <code>CommandSender</code>'s permissions to access every registered kit at once.
+	 * This is much faster than testing each kit separately, since every parent is only tested once.
+	 * @param sender The CommandSender to test.
+	 * @return The <code>PermsResult</code> for every registered kit, indexed by kit ordinal.  Ordinals that don't belong to a registered kit are null.
+	 */
+	public static PermsResult[] getAllKitPerms(CommandSender sender){
+		KitCatalog catalog = KitMaster.getCatalog();
+		
+		//Players share the cache with single kit checks
+		CachedPerms cached = null;
+		if(sender instanceof Player){
+			cached = permsCache.get(sender.getName());
+			if(cached == null || cached.version != catalog.version){
+				cached = new CachedPerms(catalog.version, catalog.kits.getOrdinalLimit());
+				permsCache.put(sender.getName(), cached);
+			}
+		}
+		
+		//Walk down the inheritance graph, so every parent is tested before its children
+		PermsResult[] results = new PermsResult[catalog.kits.getOrdinalLimit()];
+		StarPerms stars = null;
+		for(Kit kit : catalog.kits.getKitsInInheritanceOrder()){
+			if(cached != null && cached.results[kit.ordinal] != null){
+				permsHits.incrementAndGet();
+				results[kit.ordinal] = cached.results[kit.ordinal];
+				continue;
+			}
+			if(stars == null)
+				stars = new StarPerms(sender);
+			Kit parent = kit.getParent();
+			results[kit.ordinal] = getKitPerms(sender, kit, parent == null ? null : results[parent.ordinal], stars);
+			if(cached != null){
+				permsMisses.incrementAndGet();
+				cached.results[kit.ordinal] = results[kit.ordinal];
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Tests a <code>CommandSender</code>'s permissions to access a single kit, given the result for its parent.
+	 * @param sender The CommandSender to test.
+	 * @param kit The kit to test.
+	 * @param parentResult The result for the kit's parent, or null if it has none.
+	 * @param stars The sender's blanket permissions.
+	 * @return The <code>PermsResult</code> for the kit.
+	 */
+	private static PermsResult getKitPerms(CommandSender sender, Kit kit, PermsResult parentResult, StarPerms stars){
+		
 		//Check conditions, from lowest to highest priority
 		//Permissions always stack, never cancel
 		//Default to no permissions
 		PermsResult result = PermsResult.NONE;
 		
 		//First check for individual permissions
-		boolean hasSignPerms = sender.hasPermission("kitmaster.sign." + kit.name) || sender.hasPermission("kitmaster.kit." + kit.name);
-		boolean hasCommandPerms = sender.hasPermission("kitmaster.cmd." + kit.name) || sender.hasPermission("kitmaster.kit." + kit.name);
+		boolean hasKitPerms = sender.hasPermission(kit.kitNode);
+		boolean hasSignPerms = hasKitPerms || sender.hasPermission(kit.signNode);
+		boolean hasCommandPerms = hasKitPerms || sender.hasPermission(kit.commandNode);
 		if(hasSignPerms || hasCommandPerms){
 			if(!hasCommandPerms)
 				result = PermsResult.SIGN_ONLY;
@@ -249,28 +431,26 @@ public class KitHandler {
 		}
 		
 		//Next check for blanket (star) nodes
-		if(sender.hasPermission("kitmaster.sign.*")){
+		if(stars.sign){
 			if(result == PermsResult.COMMAND_ONLY)
 				result = PermsResult.ALL;
 			else if(result != PermsResult.ALL)
 				result = PermsResult.SIGN_ONLY;
 		}
-		if(sender.hasPermission("kitmaster.cmd.*")){
+		if(stars.command){
 			if(result == PermsResult.SIGN_ONLY)
 				result = PermsResult.ALL;
 			else if(result != PermsResult.ALL)
 				result = PermsResult.COMMAND_ONLY;
 		}
-		if(sender.hasPermission("kitmaster.kit.*"))
+		if(stars.kit)
 			result = PermsResult.ALL;
 		
 		//Now let's see if there are any parents to consider
-		Kit parentKit = kit.getParent();
-		if(parentKit != null){	
+		if(parentResult != null){	
 			
-			//Test the parent kit's permissions
+			//Stack the parent kit's permissions
 			//Again, always stack, never cancel
-			PermsResult parentResult = getKitPerms(sender, parentKit);
 			switch(parentResult){
 				case SIGN_ONLY:
 				case INHERIT_SIGN_ONLY:
@@ -308,4 +488,66 @@ public class KitHandler {
 		return result;
 	}
 	
+	/**
+	 * Forgets the cached results of a player's kit permission checks.  This should be called whenever the player's permissions change.
+	 * See KitPermissionsChangeEvent
+	 * @param player The player.
+	 */
+	public static void forgetPerms(OfflinePlayer player){
+		permsCache.remove(player.getName());
+	}
+	
+	/**
+	 * Forgets the cached results of every player's kit permission checks.
+	 */
+	public static void forgetAllPerms(){
+		permsCache.clear();
+	}
+	
+	/**
+	 * Gets the number of kit permission checks that have been answered from the cache.
+	 * @return The number of cache hits.
+	 */
+	public static long getPermsCacheHits(){
+		return permsHits.get();
+	}
+	
+	/**
+	 * Gets the number of kit permission checks that had to be worked out in full.
+	 * @return The number of cache misses.
+	 */
+	public static long getPermsCacheMisses(){
+		return permsMisses.get();
+	}
+	
+	/**
+	 * The blanket (star) permissions of a sender, which apply to every kit and so only need to be checked once.
+	 */
+	private static class StarPerms{
+		
+		private final boolean sign, command, kit;
+		
+		public StarPerms(CommandSender sender){
+			sign = sender.hasPermission("kitmaster.sign.*");
+			command = sender.hasPermission("kitmaster.cmd.*");
+			kit = sender.hasPermission("kitmaster.kit.*");
+		}
+		
+	}
+	
+	/**
+	 * A player's cached permission results, indexed by kit ordinal, for a particular version of the kit catalog.
+	 */
+	private static class CachedPerms{
+		
+		private final int version;
+		private final PermsResult[] results;
+		
+		public CachedPerms(int version, int size){
+			this.version = version;
+			this.results = new PermsResult[size];
+		}
+		
+	}
+	
 }
@@ -0,0 +1,166 @@
+package net.amoebaman.kitmaster.handlers;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.amoebaman.kitmaster.KitMaster;
+import net.amoebaman.kitmaster.objects.Kit;
+
+import org.bukkit.Bukkit;
+
+/**
+ * Watches the kits folder and the custom data file for changes, and reloads only what changed.
+ * Changed .kit files are parsed again and republished along with the kits that inherit from them.
+ * Changes to the custom data or to kits.yml, and deleted kit files, cause every kit to be reloaded.
+ * 
+ * @author Dennison
+ */
+public class KitWatchHandler {
+	
+	private static WatchService watcher;
+	private static Path mainDir, kitsDir;
+	
+	/*
+	 * Changes are collected on the watcher thread and applied on the main thread
+	 */
+	private static final Set<String> changed = new TreeSet<String>();
+	private static boolean reloadAll = false;
+	private static int taskId = -1;
+	
+	/**
+	 * Starts watching for changes, if not already watching.
+	 */
+	public static synchronized void start(){
+		if(watcher != null)
+			return;
+		try{
+			mainDir = Paths.get(KitMaster.MAIN_DIR).toAbsolutePath();
+			kitsDir = Paths.get(KitMaster.KITS_DIR).toAbsolutePath();
+			watcher = FileSystems.getDefault().newWatchService();
+			mainDir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			kitsDir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+		}
+		catch(IOException e){
+			KitMaster.logger().severe("Could not watch " + KitMaster.KITS_DIR + " for changes");
+			e.printStackTrace();
+			stop();
+			return;
+		}
+		Thread thread = new Thread(new Watcher(watcher), "KitMaster file watcher");
+		thread.setDaemon(true);
+		thread.start();
+		KitMaster.logger().info("Watching " + KitMaster.KITS_DIR + " for changes");
+	}
+	
+	/**
+	 * Stops watching for changes.
+	 */
+	public static synchronized void stop(){
+		if(watcher == null)
+			return;
+		try{
+			watcher.close();
+		}
+		catch(IOException e){
+			e.printStackTrace();
+		}
+		watcher = null;
+		if(taskId != -1)
+			Bukkit.getScheduler().cancelTask(taskId);
+		taskId = -1;
+		changed.clear();
+		reloadAll = false;
+	}
+	
+	private static synchronized void record(Path dir, WatchEvent<?> event){
+		if(event.kind() == OVERFLOW){
+			reloadAll = true;
+			return;
+		}
+		String name = ((Path) event.context()).getFileName().toString();
+		if(dir.equals(kitsDir)){
+			if(name.equals("kits.yml") || (name.endsWith(".kit") && event.kind() == ENTRY_DELETE))
+				reloadAll = true;
+			else if(name.endsWith(".kit"))
+				changed.add(name);
+			else
+				return;
+		}
+		else if(dir.equals(mainDir) && (name.equals("custom-data.yml") || name.equals("kits.yml")))
+			reloadAll = true;
+		else
+			return;
+		/*
+		 * Editors tend to touch a file several times when saving it, so wait a moment for things to settle
+		 */
+		if(taskId == -1)
+			taskId = Bukkit.getScheduler().scheduleSyncDelayedTask(KitMaster.plugin(), new Reload(), KitMaster.config().getLong("reload.watchDelay", 20));
+	}
+	
+	private static class Watcher implements Runnable{
+		
+		private final WatchService watcher;
+		
+		public Watcher(WatchService watcher){
+			this.watcher = watcher;
+		}
+		
+		public void run(){
+			try{
+				while(true){
+					WatchKey key = watcher.take();
+					for(WatchEvent<?> event : key.pollEvents())
+						record((Path) key.watchable(), event);
+					key.reset();
+				}
+			}
+			catch(ClosedWatchServiceException e){}
+			catch(InterruptedException e){}
+		}
+		
+	}
+	
+	private static class Reload implements Runnable{
+		
+		public void run(){
+			List<String> files;
+			boolean all;
+			synchronized(KitWatchHandler.class){
+				files = new ArrayList<String>(changed);
+				all = reloadAll;
+				changed.clear();
+				reloadAll = false;
+				taskId = -1;
+			}
+			if(!all)
+				for(String name : files)
+					if(!new File(KitMaster.KITS_DIR, name).isFile())
+						all = true;
+			if(all){
+				KitMaster.logger().info("Kit definitions or custom data changed on disk, reloading all kits");
+				KitMaster.reloadKits();
+				return;
+			}
+			List<Kit> kits = new ArrayList<Kit>();
+			for(String name : files)
+				kits.addAll(KitHandler.parseKits(new File(KitMaster.KITS_DIR, name)));
+			KitHandler.updateKits(kits);
+			KitMaster.logger().info("Reloaded " + kits.size() + " changed kits from " + files);
+		}
+		
+	}
+	
+}
@@ -1,5 +1,6 @@
 package net.amoebaman.kitmaster.handlers;
 
+import net.amoebaman.kitmaster.KitMaster;
 import net.amoebaman.kitmaster.objects.Kit;
 
 import org.bukkit.ChatColor;
@@ -7,15 +8,27 @@ import org.bukkit.configuration.ConfigurationSection;
 
 public class MessageHandler {
 
-	public static ConfigurationSection yaml;
+	private static ConfigurationSection yaml(){
+		return KitMaster.getCatalog().messages;
+	}
 	
 	public static String getPrefix(){
-		return ChatColor.translateAlternateColorCodes('&', yaml.getString("prefix", "&o"));
+		return ChatColor.translateAlternateColorCodes('&', yaml().getString("prefix", "&o"));
 	}
 	
 	public static String getMessage(String label){
+		return getMessage(label, (String) null);
+	}
+	
+	/**
+	 * Gets a message, falling back to a default for message files written before the message was added.
+	 * @param label the message's label
+	 * @param def the message to use if the message file doesn't have one
+	 * @return the message
+	 */
+	public static String getMessage(String label, String def){
 		label = label.toLowerCase().replace(' ', '_');
-		String message = getPrefix() + yaml.getString(label);
+		String message = getPrefix() + yaml().getString(label, def);
 		message = ChatColor.translateAlternateColorCodes('&', message);
 		return message;
 	}
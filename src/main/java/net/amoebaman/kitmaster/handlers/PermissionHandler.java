@@ -0,0 +1,177 @@
+package net.amoebaman.kitmaster.handlers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import net.amoebaman.kitmaster.KitMaster;
+import net.amoebaman.kitmaster.objects.Kit;
+import net.amoebaman.kitmaster.utilities.KitPermissionsChangeEvent;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.PermissionAttachment;
+
+/**
+ * Keeps track of the permissions that kits have granted to players.
+ * Permissions are granted through a transient PermissionAttachment rather than a permissions plugin, so granting and clearing them never touches a disk or database.
+ * Each player's grants are remembered by kit, so a kit's permissions can be removed without disturbing permissions that other kits also granted.
+ * 
+ * @author Dennison
+ */
+public class PermissionHandler {
+	
+	private static final HashMap<String, Ledger> ledgers = new HashMap<String, Ledger>();
+	
+	/**
+	 * Grants a kit's permissions to a player.
+	 * @param player The player.
+	 * @param kit The kit.
+	 */
+	public static void grant(Player player, Kit kit){
+		if(kit.permissions.isEmpty())
+			return;
+		ledger(player).grant(kit);
+		new KitPermissionsChangeEvent(player).callEvent();
+	}
+	
+	/**
+	 * Removes the permissions a kit granted to a player.  Permissions that were also granted by another kit are kept.
+	 * @param player The player.
+	 * @param kit The kit.
+	 */
+	public static void revoke(Player player, Kit kit){
+		Ledger ledger = ledgers.get(player.getName());
+		if(ledger != null && ledger.revoke(kit))
+			new KitPermissionsChangeEvent(player).callEvent();
+	}
+	
+	private static Ledger ledger(Player player){
+		Ledger ledger = ledgers.get(player.getName());
+		if(ledger == null){
+			ledger = new Ledger(player.addAttachment(KitMaster.plugin()));
+			ledgers.put(player.getName(), ledger);
+		}
+		return ledger;
+	}
+	
+	/**
+	 * Removes every permission kits have granted to a player.
+	 * @param player The player.
+	 */
+	public static void revokeAll(Player player){
+		Ledger ledger = ledgers.remove(player.getName());
+		if(ledger != null){
+			ledger.detach();
+			new KitPermissionsChangeEvent(player).callEvent();
+		}
+	}
+	
+	/**
+	 * Grants a player the permissions of all the kits in their history again, such as when they rejoin.
+	 * When using SQL, the history is fetched off the main thread and the permissions are granted on the main thread once it arrives.
+	 * @param player The player.
+	 */
+	public static void restore(final Player player){
+		unload(player);
+		if(!KitMaster.isSQLRunning()){
+			grantHistory(player);
+			return;
+		}
+		Bukkit.getScheduler().runTaskAsynchronously(KitMaster.plugin(), new Runnable(){ public void run(){
+			HistoryHandler.prefetch(player);
+			Bukkit.getScheduler().runTask(KitMaster.plugin(), new Runnable(){ public void run(){
+				if(player.isOnline())
+					grantHistory(player);
+			}});
+		}});
+	}
+	
+	/*
+	 * Grants the permissions of every kit in the player's history, with only one event for all of them
+	 */
+	private static void grantHistory(Player player){
+		boolean granted = false;
+		for(Kit kit : HistoryHandler.getHistory(player))
+			if(!kit.permissions.isEmpty()){
+				ledger(player).grant(kit);
+				granted = true;
+			}
+		if(granted)
+			new KitPermissionsChangeEvent(player).callEvent();
+	}
+	
+	/**
+	 * Forgets a player's grants without touching their permissions, for when they leave.
+	 * Their permissions are granted again from their history when they rejoin.
+	 * @param player The player.
+	 */
+	public static void unload(Player player){
+		Ledger ledger = ledgers.remove(player.getName());
+		if(ledger != null)
+			ledger.detach();
+	}
+	
+	/**
+	 * Removes every permission kits have granted to anyone, for when KitMaster is disabled.
+	 */
+	public static void revokeEveryone(){
+		for(Ledger ledger : ledgers.values())
+			ledger.detach();
+		ledgers.clear();
+		new KitPermissionsChangeEvent().callEvent();
+	}
+	
+	/**
+	 * A player's permission attachment, along with the nodes each kit granted through it.
+	 * Nodes are counted, so that a node granted by two kits stays until both kits are revoked.
+	 */
+	private static class Ledger{
+		
+		private final PermissionAttachment attachment;
+		private final HashMap<Integer, List<String>> grants = new HashMap<Integer, List<String>>();
+		private final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		
+		public Ledger(PermissionAttachment attachment){
+			this.attachment = attachment;
+		}
+		
+		/*
+		 * Granting a kit that is already granted changes nothing, so revoking it once is always enough
+		 */
+		public void grant(Kit kit){
+			if(grants.containsKey(kit.ordinal))
+				return;
+			List<String> nodes = new ArrayList<String>(kit.permissions);
+			grants.put(kit.ordinal, nodes);
+			for(String node : nodes){
+				Integer count = counts.get(node);
+				counts.put(node, count == null ? 1 : count + 1);
+				if(count == null)
+					attachment.setPermission(node, true);
+			}
+		}
+		
+		public boolean revoke(Kit kit){
+			List<String> nodes = grants.remove(kit.ordinal);
+			if(nodes == null)
+				return false;
+			for(String node : nodes){
+				int count = counts.get(node) - 1;
+				if(count > 0)
+					counts.put(node, count);
+				else{
+					counts.remove(node);
+					attachment.unsetPermission(node);
+				}
+			}
+			return true;
+		}
+		
+		public void detach(){
+			attachment.remove();
+		}
+		
+	}
+	
+}
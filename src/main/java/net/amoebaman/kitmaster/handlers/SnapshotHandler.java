@@ -0,0 +1,154 @@
+package net.amoebaman.kitmaster.handlers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.amoebaman.kitmaster.KitMaster;
+import net.amoebaman.kitmaster.enums.Attribute;
+import net.amoebaman.kitmaster.objects.Kit;
+
+import org.bukkit.Bukkit;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.util.io.BukkitObjectInputStream;
+import org.bukkit.util.io.BukkitObjectOutputStream;
+
+/**
+ * Stores compiled kits in a compact binary snapshot, so they can be loaded without parsing any YAML or item strings.
+ * A snapshot is keyed by the modification times and sizes of the files the kits were loaded from, and is only used if none of them have changed.
+ * 
+ * @author Dennison
+ */
+public class SnapshotHandler {
+	
+	/** Bump this whenever the layout of the snapshot changes */
+	private static final int FORMAT = 1;
+	
+	/**
+	 * Loads kits from a snapshot, as long as the snapshot is still up to date.
+	 * @param file The snapshot file.
+	 * @param sources The files the kits were originally loaded from.
+	 * @return The kits in the snapshot, in the order they were loaded, or null if the snapshot is missing, outdated, or unreadable.
+	 */
+	public static List<Kit> load(File file, List<File> sources){
+		if(!file.isFile())
+			return null;
+		BukkitObjectInputStream in = null;
+		try{
+			in = new BukkitObjectInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+			if(in.readInt() != FORMAT || !fingerprint(sources).equals(in.readObject()))
+				return null;
+			int count = in.readInt();
+			List<Kit> kits = new ArrayList<Kit>(count);
+			for(int i = 0; i < count; i++)
+				kits.add(readKit(in));
+			return kits;
+		}
+		catch(Exception e){
+			KitMaster.logger().warning("Could not read the kit snapshot at " + file.getPath() + ", kits will be parsed instead: " + e);
+			return null;
+		}
+		finally{
+			close(in);
+		}
+	}
+	
+	/**
+	 * Saves kits to a snapshot.  The snapshot is written to a temporary file first, so a failed save never leaves a corrupt snapshot behind.
+	 * @param file The snapshot file.
+	 * @param sources The files the kits were loaded from.
+	 * @param kits The kits, as they were defined, in the order they were loaded.
+	 */
+	public static void save(File file, List<File> sources, List<Kit> kits){
+		File temp = new File(file.getPath() + ".tmp");
+		BukkitObjectOutputStream out = null;
+		try{
+			out = new BukkitObjectOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temp))));
+			out.writeInt(FORMAT);
+			out.writeObject(fingerprint(sources));
+			out.writeInt(kits.size());
+			for(Kit kit : kits)
+				writeKit(out, kit);
+			out.close();
+			out = null;
+			if(file.exists() && !file.delete())
+				throw new IOException("could not replace the old snapshot");
+			if(!temp.renameTo(file))
+				throw new IOException("could not move the new snapshot into place");
+		}
+		catch(Exception e){
+			KitMaster.logger().warning("Could not save the kit snapshot to " + file.getPath() + ": " + e);
+			temp.delete();
+		}
+		finally{
+			close(out);
+		}
+	}
+	
+	/**
+	 * The fingerprint covers the source files as well as the plugin and server versions, since either may change how items are parsed or serialized
+	 */
+	private static String fingerprint(List<File> sources){
+		StringBuilder fingerprint = new StringBuilder();
+		fingerprint.append(KitMaster.plugin().getDescription().getVersion()).append('|').append(Bukkit.getBukkitVersion());
+		for(File source : sources)
+			fingerprint.append('\n').append(source.getPath()).append('|').append(source.lastModified()).append('|').append(source.length());
+		return fingerprint.toString();
+	}
+	
+	private static void writeKit(BukkitObjectOutputStream out, Kit kit) throws IOException{
+		out.writeUTF(kit.name);
+		out.writeInt(kit.items.size());
+		for(ItemStack item : kit.items)
+			out.writeObject(item);
+		out.writeInt(kit.effects.size());
+		for(PotionEffect effect : kit.effects)
+			out.writeObject(effect);
+		out.writeObject(new ArrayList<String>(kit.permissions));
+		/*
+		 * Attributes are stored by name rather than by ordinal, so that adding new attributes doesn't break old snapshots
+		 */
+		HashMap<String, Object> attributes = new HashMap<String, Object>();
+		for(Map.Entry<Attribute, Object> entry : kit.attributes.entrySet())
+			attributes.put(entry.getKey().name(), entry.getValue());
+		out.writeObject(attributes);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Kit readKit(BukkitObjectInputStream in) throws IOException, ClassNotFoundException{
+		String name = in.readUTF();
+		int itemCount = in.readInt();
+		List<ItemStack> items = new ArrayList<ItemStack>(itemCount);
+		for(int i = 0; i < itemCount; i++)
+			items.add((ItemStack) in.readObject());
+		int effectCount = in.readInt();
+		List<PotionEffect> effects = new ArrayList<PotionEffect>(effectCount);
+		for(int i = 0; i < effectCount; i++)
+			effects.add((PotionEffect) in.readObject());
+		List<String> permissions = (List<String>) in.readObject();
+		HashMap<Attribute, Object> attributes = new HashMap<Attribute, Object>();
+		for(Map.Entry<String, Object> entry : ((Map<String, Object>) in.readObject()).entrySet())
+			attributes.put(Attribute.valueOf(entry.getKey()), entry.getValue());
+		return new Kit(name, items, effects, permissions, attributes);
+	}
+	
+	private static void close(Closeable stream){
+		if(stream != null)
+			try{
+				stream.close();
+			}
+			catch(IOException e){}
+	}
+	
+}
@@ -3,11 +3,22 @@ package net.amoebaman.kitmaster.handlers;
 import java.io.File;
 import java.io.IOException;
 import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import net.amoebaman.kitmaster.KitMaster;
 import net.amoebaman.kitmaster.enums.Attribute;
 import net.amoebaman.kitmaster.enums.GiveKitResult;
 import net.amoebaman.kitmaster.objects.Kit;
+import net.amoebaman.kitmaster.objects.KitRegistry;
 import net.amoebaman.kitmaster.sql.SQLQueries;
 
 import org.bukkit.Bukkit;
@@ -19,79 +30,346 @@ import org.bukkit.entity.Player;
 
 public class TimeStampHandler {
 	
-	private static YamlConfiguration yamlConfig;
+	/*
+	 * Timestamps are held in memory by player name and kit ordinal, with "global" standing in for kits with global timeouts
+	 * With flat files every timestamp lives here, with SQL a player's timestamps are fetched all at once the first time they're needed and kept until they leave
+	 * Reads never touch the disk or the database after that, and changes are written behind on an interval and on shutdown
+	 */
+	private static final ConcurrentHashMap<String, Stamps> stamps = new ConcurrentHashMap<String, Stamps>();
+	
+	/*
+	 * Timestamps that will stop mattering once their kit's timeout runs out, soonest first
+	 * Entries are only checked against the current timestamp when they come up, so entries for timestamps that have since changed are simply skipped
+	 */
+	private static final PriorityQueue<Expiry> expiries = new PriorityQueue<Expiry>();
+	private static volatile boolean purged = false;
+	
+	private static File file = null;
+	private static int flushTask = -1, sweepTask = -1;
+	
+	/*
+	 * Flat file saves happen one at a time, in the order their snapshots were taken, so an older snapshot can never land on top of a newer one
+	 */
+	private static final Object saveLock = new Object();
+	private static ExecutorService saver = null;
 	
 	public static void load(File file) throws IOException{
-		yamlConfig = YamlConfiguration.loadConfiguration(file);
+		YamlConfiguration yamlConfig = YamlConfiguration.loadConfiguration(file);
+		stamps.clear();
+		for(String name : yamlConfig.getKeys(false))
+			if(yamlConfig.isConfigurationSection(name)){
+				Stamps playerStamps = new Stamps();
+				ConfigurationSection playerSection = yamlConfig.getConfigurationSection(name);
+				for(String kitName : playerSection.getKeys(false)){
+					int ordinal = KitRegistry.ordinalOf(kitName);
+					long stamp = playerSection.getLong(kitName, 0);
+					playerStamps.load(ordinal, stamp);
+					index(name, ordinal, stamp);
+				}
+				stamps.put(name, playerStamps);
+			}
 	}
 	
 	public static void save(File file) throws IOException{
-		OfflinePlayer player;
-		Kit kit;
-		for(String name : yamlConfig.getKeys(false))
-			if(yamlConfig.isConfigurationSection(name))
-				/*
-				 * Purge expired/irrelevant timestamps
-				 * We need this to keep the file from becoming horribly massive on large servers
-				 */
-				for(String kitName : yamlConfig.getConfigurationSection(name).getKeys(false)){
-					player = Bukkit.getOfflinePlayer(name);
-					kit = KitHandler.getKit(kitName);
-					if(kit == null || (!kit.booleanAttribute(Attribute.SINGLE_USE) && !timeoutRemaining(player, kit).isEmpty()))
-						yamlConfig.set(name + "." + kitName, null);
+		HashMap<String, List<Integer>> changed = new HashMap<String, List<Integer>>();
+		YamlConfiguration yamlConfig = toYaml(changed);
+		synchronized(saveLock){
+			try{
+				yamlConfig.save(file);
+			}
+			catch(IOException ioe){
+				unclean(changed);
+				throw ioe;
+			}
+		}
+	}
+	
+	/*
+	 * Expired timestamps are purged as they expire, so everything left is live and can be written as is
+	 * The timestamps that had changed are recorded by player, so they can be marked as changed again if the save fails
+	 */
+	private static YamlConfiguration toYaml(HashMap<String, List<Integer>> changed){
+		YamlConfiguration yamlConfig = new YamlConfiguration();
+		purged = false;
+		for(String name : stamps.keySet()){
+			Stamps playerStamps = stamps.get(name);
+			List<Integer> playerChanged = new ArrayList<Integer>();
+			long[] values = playerStamps.clean(playerChanged);
+			if(!playerChanged.isEmpty())
+				changed.put(name, playerChanged);
+			ConfigurationSection playerSection = null;
+			for(int ordinal = 0; ordinal < values.length; ordinal++)
+				if(values[ordinal] != 0){
+					if(playerSection == null)
+						playerSection = yamlConfig.createSection(name);
+					playerSection.set(KitRegistry.nameOf(ordinal), values[ordinal]);
 				}
-		
-		yamlConfig.save(file);
+		}
+		return yamlConfig;
 	}
 	
-	public static boolean hasOverride(Player player, Kit kit){
-		return player.hasPermission("kitmaster.notimeout") || player.hasPermission("kitmaster.notimeout." + kit.name);
+	/*
+	 * Marks timestamps as changed again after a save that should have written them failed, so the next flush tries again
+	 */
+	private static void unclean(HashMap<String, List<Integer>> changed){
+		purged = true;
+		for(String name : changed.keySet()){
+			Stamps playerStamps = stamps.get(name);
+			if(playerStamps != null)
+				playerStamps.unclean(changed.get(name));
+		}
 	}
 	
-	public static long getTimeStamp(OfflinePlayer player, Kit kit){
-		String name = player == null ? "global" : player.getName();
+	/*
+	 * Works out when a timestamp stops mattering, which is never for single use kits
+	 * Timestamps for kits that no longer exist have already stopped mattering
+	 */
+	private static long expiryOf(int ordinal, long stamp){
+		Kit kit = KitMaster.getCatalog().kits.getByOrdinal(ordinal);
+		if(kit == null)
+			return stamp;
+		if(kit.booleanAttribute(Attribute.SINGLE_USE) || kit.booleanAttribute(Attribute.SINGLE_USE_LIFE))
+			return Long.MAX_VALUE;
+		return stamp + kit.integerAttribute(Attribute.TIMEOUT) * 1000L;
+	}
+	
+	private static void index(String name, int ordinal, long stamp){
+		if(stamp == 0)
+			return;
+		long expiresAt = expiryOf(ordinal, stamp);
+		if(expiresAt != Long.MAX_VALUE)
+			synchronized(expiries){
+				expiries.add(new Expiry(expiresAt, name, ordinal, stamp));
+			}
+	}
+	
+	/**
+	 * Drops timestamps whose kit's timeout has run out, soonest first, until there are none left or the time budget is spent.
+	 * Kits whose timeout was changed since a timestamp was indexed are checked against the new timeout.
+	 * @param budget How many nanoseconds may be spent.
+	 * @return How many timestamps were dropped.
+	 */
+	public static int sweep(long budget){
+		long start = System.nanoTime(), now = System.currentTimeMillis();
+		int dropped = 0;
+		while(System.nanoTime() - start < budget){
+			Expiry expiry;
+			synchronized(expiries){
+				if(expiries.isEmpty() || expiries.peek().expiresAt > now)
+					break;
+				expiry = expiries.poll();
+			}
+			Stamps playerStamps = stamps.get(expiry.name);
+			if(playerStamps == null || playerStamps.get(expiry.ordinal) != expiry.stamp)
+				continue;
+			long expiresAt = expiryOf(expiry.ordinal, expiry.stamp);
+			if(expiresAt > now){
+				index(expiry.name, expiry.ordinal, expiry.stamp);
+				continue;
+			}
+			/*
+			 * With SQL the database keeps its copy, which does no harm, so only the file needs to be rewritten
+			 */
+			if(playerStamps.expire(expiry.ordinal, expiry.stamp)){
+				dropped++;
+				if(!KitMaster.isSQLRunning()){
+					purged = true;
+					if(playerStamps.isEmpty())
+						stamps.remove(expiry.name, playerStamps);
+				}
+			}
+		}
+		return dropped;
+	}
+	
+	/**
+	 * Starts writing changed timestamps behind, every timestamps.flushInterval seconds.
+	 * @param file The flat file to save timestamps to, when not using SQL.
+	 */
+	public static void startFlushing(File file){
+		TimeStampHandler.file = file;
+		saver = Executors.newSingleThreadExecutor();
+		long interval = Math.max(1, KitMaster.config().getLong("timestamps.flushInterval", 30)) * 20;
+		flushTask = Bukkit.getScheduler().scheduleSyncRepeatingTask(KitMaster.plugin(), new Runnable(){ public void run(){
+			flush(false);
+		}}, interval, interval);
+		sweepTask = Bukkit.getScheduler().scheduleSyncRepeatingTask(KitMaster.plugin(), new Runnable(){ public void run(){
+			sweep(2000000);
+		}}, 20, 20);
+	}
+	
+	/**
+	 * Stops writing timestamps behind, waits for any save that is still in progress, and writes any that have changed since they were last written.
+	 */
+	public static void stopFlushing(){
+		if(flushTask != -1)
+			Bukkit.getScheduler().cancelTask(flushTask);
+		if(sweepTask != -1)
+			Bukkit.getScheduler().cancelTask(sweepTask);
+		flushTask = sweepTask = -1;
+		if(saver != null){
+			saver.shutdown();
+			try{
+				if(!saver.awaitTermination(30, TimeUnit.SECONDS))
+					KitMaster.logger().severe("Timed out while waiting for timestamps to finish saving");
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+			}
+			saver = null;
+		}
+		flush(true);
+	}
+	
+	/**
+	 * Writes every timestamp that has changed since it was last written.
+	 * With SQL the changes are queued to be sent to the database, and with flat files the file is saved.
+	 * @param now Whether to save the flat file right away, instead of off the main thread.
+	 */
+	public static void flush(boolean now){
+		if(KitMaster.isSQLRunning()){
+			for(String name : stamps.keySet())
+				flush(name, stamps.get(name));
+			return;
+		}
+		boolean dirty = purged;
+		for(Stamps playerStamps : stamps.values())
+			dirty |= playerStamps.isDirty();
+		if(!dirty || file == null)
+			return;
+		final HashMap<String, List<Integer>> changed = new HashMap<String, List<Integer>>();
+		final YamlConfiguration yamlConfig = toYaml(changed);
+		final File target = file;
+		Runnable save = new Runnable(){ public void run(){
+			synchronized(saveLock){
+				try{
+					yamlConfig.save(target);
+				}
+				catch(IOException ioe){
+					ioe.printStackTrace();
+					unclean(changed);
+				}
+			}
+		}};
+		if(now || saver == null)
+			save.run();
+		else
+			saver.execute(save);
+	}
+	
+	private static void flush(String name, Stamps playerStamps){
+		List<Integer> changed = new ArrayList<Integer>();
+		long[] values = playerStamps.clean(changed);
+		for(int ordinal : changed)
+			if(values[ordinal] == 0)
+				KitMaster.getSQL().queueCommand("cooldown:" + name + ":" + ordinal, SQLQueries.REMOVE_TIMESTAMP.replace(SQLQueries.PLAYER_MACRO, name).replace(SQLQueries.KIT_MACRO, KitRegistry.nameOf(ordinal)));
+			else
+				KitMaster.getSQL().queueCommand("cooldown:" + name + ":" + ordinal, SQLQueries.UPDATE_TIMESTAMP.replace(SQLQueries.PLAYER_MACRO, name).replace(SQLQueries.KIT_MACRO, KitRegistry.nameOf(ordinal)).replace(SQLQueries.TIMESTAMP_MACRO, "" + values[ordinal]));
+	}
+	
+	/**
+	 * Writes a player's changed timestamps when they leave, and drops them from memory once they have been written.  This only has an effect when using SQL.
+	 * Until then they stay in memory, so a player who rejoins straight away never reads back timestamps the database doesn't have yet.
+	 * @param player The player.
+	 */
+	public static void unload(OfflinePlayer player){
+		if(!KitMaster.isSQLRunning())
+			return;
+		final String name = player.getName();
+		final Stamps playerStamps = stamps.get(name);
+		if(playerStamps == null)
+			return;
+		flush(name, playerStamps);
+		KitMaster.getSQL().queueCallback(new Runnable(){ public void run(){
+			if(KitMaster.plugin().isEnabled())
+				Bukkit.getScheduler().runTask(KitMaster.plugin(), new Runnable(){ public void run(){
+					/*
+					 * If they came back, or changed again since, they'll be dropped after they next leave
+					 */
+					if(Bukkit.getPlayerExact(name) == null && !playerStamps.isDirty())
+						stamps.remove(name, playerStamps);
+				}});
+		}});
+	}
+	
+	/*
+	 * Gets a player's timestamps, fetching all of their rows from the database the first time when using SQL
+	 */
+	private static Stamps stamps(String name){
+		Stamps playerStamps = stamps.get(name);
+		if(playerStamps != null)
+			return playerStamps;
+		playerStamps = new Stamps();
 		if(KitMaster.isSQLRunning()){
-			String query = SQLQueries.GET_TIMESTAMP.replace(SQLQueries.PLAYER_MACRO, name).replace(SQLQueries.KIT_MACRO, kit.name);
-			ResultSet set = KitMaster.getSQL().executeQuery(query);
-			Long stamp = KitMaster.getSQL().getFirstResult(set, kit.name, Long.class);
-			return stamp == null ? 0 : stamp;
-		}
-		else{
-			ConfigurationSection playerSection = yamlConfig.getConfigurationSection(name);
-			if(playerSection == null){
-				yamlConfig.createSection(name);
-				return 0;
+			ResultSet set = KitMaster.getSQL().executeQuery(SQLQueries.GET_TIMESTAMPS.replace(SQLQueries.PLAYER_MACRO, name));
+			try{
+				while(set != null && set.next()){
+					int ordinal = KitRegistry.ordinalOf(set.getString("kit"));
+					long stamp = set.getLong("stamp");
+					playerStamps.load(ordinal, stamp);
+					index(name, ordinal, stamp);
+				}
 			}
-			return playerSection.getLong(kit.name, 0);
+			catch(Exception e){ e.printStackTrace(); }
 		}
+		Stamps existing = stamps.putIfAbsent(name, playerStamps);
+		return existing != null ? existing : playerStamps;
+	}
+	
+	public static boolean hasOverride(Player player, Kit kit){
+		return player.hasPermission("kitmaster.notimeout") || player.hasPermission("kitmaster.notimeout." + kit.name);
+	}
+	
+	public static long getTimeStamp(OfflinePlayer player, Kit kit){
+		return stamps(player == null ? "global" : player.getName()).get(kit.ordinal);
+	}
+	
+	/**
+	 * Gets a timestamp without touching the database, for when it has already been fetched and only needs to be checked for changes made since.
+	 * @param player The player, or null for the global timestamp.
+	 * @param kit The kit.
+	 * @return The timestamp, or 0 if it isn't known without asking the database.
+	 */
+	public static long getKnownTimeStamp(OfflinePlayer player, Kit kit){
+		Stamps playerStamps = stamps.get(player == null ? "global" : player.getName());
+		return playerStamps == null ? 0 : playerStamps.get(kit.ordinal);
 	}
 	
 	public static void setTimeStamp(OfflinePlayer player, Kit kit){
+		setTimeStamp(player, kit, null);
+	}
+	
+	/**
+	 * Stamps the current time for a kit.
+	 * @param player The player, or null for the global timestamp.
+	 * @param kit The kit.
+	 * @param transaction When using SQL, a list to add the SQL command to so that the timestamp is written in the same transaction as others, or null to write it with the next flush.
+	 */
+	public static void setTimeStamp(OfflinePlayer player, Kit kit, List<String> transaction){
 		String name = player == null ? "global" : player.getName();
-		if(KitMaster.isSQLRunning())
-			KitMaster.getSQL().executeCommand(SQLQueries.UPDATE_TIMESTAMP.replace(SQLQueries.PLAYER_MACRO, name).replace(SQLQueries.KIT_MACRO, kit.name).replace(SQLQueries.TIMESTAMP_MACRO, "" + System.currentTimeMillis()));
-		else{
-			ConfigurationSection playerSection = yamlConfig.getConfigurationSection(name);
-			if(playerSection == null)
-				playerSection = yamlConfig.createSection(name);
-			playerSection.set(kit.name, System.currentTimeMillis());
-		}
+		long stamp = System.currentTimeMillis();
+		boolean written = transaction != null && KitMaster.isSQLRunning();
+		stamps(name).set(kit.ordinal, stamp, !written);
+		index(name, kit.ordinal, stamp);
+		if(written)
+			transaction.add(SQLQueries.UPDATE_TIMESTAMP.replace(SQLQueries.PLAYER_MACRO, name).replace(SQLQueries.KIT_MACRO, kit.name).replace(SQLQueries.TIMESTAMP_MACRO, "" + stamp));
 	}
 	
 	public static void clearTimeStamp(OfflinePlayer player, Kit kit){
-		String name = player == null ? "global" : player.getName();
-		if(KitMaster.isSQLRunning())
-			KitMaster.getSQL().executeCommand(SQLQueries.UPDATE_TIMESTAMP.replace(SQLQueries.PLAYER_MACRO, name).replace(SQLQueries.KIT_MACRO, kit.name).replace(SQLQueries.TIMESTAMP_MACRO, "0"));
-		else{
-			ConfigurationSection playerSection = yamlConfig.getConfigurationSection(name);
-			if(playerSection == null)
-				playerSection = yamlConfig.createSection(name);
-			playerSection.set(kit.name, null);
-		}
+		stamps(player == null ? "global" : player.getName()).set(kit.ordinal, 0, true);
 	}
 	
 	public static GiveKitResult timeoutCheck(OfflinePlayer player, Kit kit){
-		long stamp = getTimeStamp(kit.booleanAttribute(Attribute.GLOBAL_TIMEOUT) ? null : player, kit);
+		return timeoutCheck(kit, getTimeStamp(kit.booleanAttribute(Attribute.GLOBAL_TIMEOUT) ? null : player, kit));
+	}
+	
+	/**
+	 * Checks a kit's timeout against a timestamp that has already been fetched.
+	 * @param kit The kit.
+	 * @param stamp The timestamp of the last time the kit was taken.
+	 * @return The result of the check.
+	 */
+	public static GiveKitResult timeoutCheck(Kit kit, long stamp){
 		long timeout = kit.integerAttribute(Attribute.TIMEOUT);
 		if(System.currentTimeMillis() - stamp < timeout * 1000)
 			return GiveKitResult.FAIL_TIMEOUT;	
@@ -101,7 +379,16 @@ public class TimeStampHandler {
 	}
 	
 	public static String timeoutRemaining(OfflinePlayer player, Kit kit){
-		long stamp = getTimeStamp(kit.booleanAttribute(Attribute.GLOBAL_TIMEOUT) ? null : player, kit);
+		return timeoutRemaining(kit, getTimeStamp(kit.booleanAttribute(Attribute.GLOBAL_TIMEOUT) ? null : player, kit));
+	}
+	
+	/**
+	 * Describes the time remaining on a kit's timeout, using a timestamp that has already been fetched.
+	 * @param kit The kit.
+	 * @param stamp The timestamp of the last time the kit was taken.
+	 * @return The time remaining, in words.
+	 */
+	public static String timeoutRemaining(Kit kit, long stamp){
 		long timeout = kit.integerAttribute(Attribute.TIMEOUT) * 1000;
 		int seconds = (int)((stamp + timeout - System.currentTimeMillis()) / 1000), minutes = 0, hours = 0, days = 0;
 		seconds = seconds < 0 ? 0 : seconds;
@@ -125,4 +412,92 @@ public class TimeStampHandler {
 		return result.trim();
 	}
 	
+	/**
+	 * One player's timestamps, indexed by kit ordinal, along with which of them have changed since they were last written.
+	 */
+	private static class Stamps{
+		
+		private long[] values = new long[0];
+		private final BitSet dirty = new BitSet();
+		
+		public synchronized long get(int ordinal){
+			return ordinal < values.length ? values[ordinal] : 0;
+		}
+		
+		public synchronized void load(int ordinal, long value){
+			set(ordinal, value, false);
+		}
+		
+		public synchronized void set(int ordinal, long value, boolean changed){
+			if(ordinal >= values.length)
+				values = Arrays.copyOf(values, Math.max(ordinal + 1, values.length * 2));
+			values[ordinal] = value;
+			if(changed)
+				dirty.set(ordinal);
+		}
+		
+		/*
+		 * Drops a timestamp that has expired, unless it has changed since
+		 */
+		public synchronized boolean expire(int ordinal, long stamp){
+			if(get(ordinal) != stamp)
+				return false;
+			values[ordinal] = 0;
+			return true;
+		}
+		
+		public synchronized boolean isEmpty(){
+			for(long value : values)
+				if(value != 0)
+					return false;
+			return true;
+		}
+		
+		public synchronized void unclean(List<Integer> ordinals){
+			for(int ordinal : ordinals)
+				dirty.set(ordinal);
+		}
+		
+		public synchronized boolean isDirty(){
+			return !dirty.isEmpty();
+		}
+		
+		/*
+		 * Marks every timestamp as written, and returns a copy of the timestamps as they were written
+		 * The ordinals of the ones that had changed are added to the list, if one is given
+		 * Both happen in one step, so nothing changed in between can be marked as written without being in the copy
+		 */
+		public synchronized long[] clean(List<Integer> changed){
+			if(changed != null)
+				for(int ordinal = dirty.nextSetBit(0); ordinal >= 0; ordinal = dirty.nextSetBit(ordinal + 1))
+					changed.add(ordinal);
+			dirty.clear();
+			return values.clone();
+		}
+		
+	}
+	
+	/**
+	 * The time a timestamp stops mattering.
+	 */
+	private static class Expiry implements Comparable<Expiry>{
+		
+		private final long expiresAt;
+		private final String name;
+		private final int ordinal;
+		private final long stamp;
+		
+		public Expiry(long expiresAt, String name, int ordinal, long stamp){
+			this.expiresAt = expiresAt;
+			this.name = name;
+			this.ordinal = ordinal;
+			this.stamp = stamp;
+		}
+		
+		public int compareTo(Expiry other){
+			return expiresAt < other.expiresAt ? -1 : expiresAt > other.expiresAt ? 1 : 0;
+		}
+		
+	}
+	
 }
@@ -1,7 +1,5 @@
 package net.amoebaman.kitmaster.objects;
 
-import net.amoebaman.kitmaster.KitMaster;
-
 import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
@@ -39,34 +37,10 @@ public class Armor {
 	 * @param mat the Material
 	 */
 	public Armor(Material mat){
-		if(mat != null){
-			if(mat.name().contains("HELMET"))
-				type = ArmorType.HELMET;
-			if(mat.name().contains("CHESTPLATE"))
-				type = ArmorType.CHESTPLATE;
-			if(mat.name().contains("LEGGINGS"))
-				type = ArmorType.LEGGINGS;
-			if(mat.name().contains("BOOTS"))
-				type = ArmorType.BOOTS;
-
-			if(mat.name().contains("DIAMOND"))
-				lvl = ArmorLevel.DIAMOND;
-			if(mat.name().contains("IRON"))
-				lvl = ArmorLevel.IRON;
-			if(mat.name().contains("CHAINMAIL"))
-				lvl = ArmorLevel.CHAINMAIL;
-			if(mat.name().contains("GOLD"))
-				lvl = ArmorLevel.GOLD;
-			if(mat.name().contains("LEATHER"))
-				lvl = ArmorLevel.LEATHER;
-			if(mat.name().contains("WOOL")){
-				type = ArmorType.HELMET;
-				lvl = ArmorLevel.WOOL;
-			}
-			if(mat.name().contains("SKULL")){
-				type = ArmorType.HELMET;
-				lvl = ArmorLevel.SKULL;
-			}
+		MaterialTable.Entry entry = MaterialTable.get().of(mat);
+		if(entry != null){
+			type = entry.armorType;
+			lvl = entry.armorLevel;
 			item = getRawItem();
 		}
 
@@ -128,11 +102,7 @@ public class Armor {
 	 * @return true if this Armor is valid
 	 */
 	public boolean isValid(){
-		if(!KitMaster.config().getBoolean("inventory.woolHats") && lvl == ArmorLevel.WOOL)
-			return false;
-		if(!KitMaster.config().getBoolean("inventory.skullHats") && lvl == ArmorLevel.SKULL)
-			return false;
-		return type != null && lvl != null && item != null;
+		return type != null && lvl != null && item != null && MaterialTable.get().isArmor(lvl);
 	}
 
 	/**
@@ -140,7 +110,7 @@ public class Armor {
 	 * @return true if a construction call with this Material will produce a valid Armor
 	 */
 	public static boolean isValid(Material mat){
-		return new Armor(mat).isValid();
+		return MaterialTable.get().isArmor(mat);
 	}
 
 	/**
@@ -0,0 +1,229 @@
+package net.amoebaman.kitmaster.objects;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.amoebaman.kitmaster.controllers.InventoryController;
+import net.amoebaman.kitmaster.controllers.ItemScorer;
+import net.amoebaman.kitmaster.enums.Attribute;
+
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.potion.PotionEffect;
+
+/**
+ * Everything that giving a kit does, worked out ahead of time so that giving the kit only has to carry it out.
+ * Resolved kits compile their plan once, when kits are loaded, so the inventory settings in the configuration are read at that time.
+ *
+ * @author Dennison
+ */
+public class GivePlan {
+
+	/** Which parts of the player's kits the kit clears before it is given */
+	public final boolean clearAll, clearInventory, clearEffects, clearPermissions;
+
+	/** Whether the kit's items upgrade the items of its parent, rather than being added alongside them */
+	public final boolean upgrade;
+
+	/** Where each of the kit's items goes, in the order they are given */
+	public final List<Placement> placements;
+
+	/** The potion effects the kit applies, with their durations already made infinite if the kit has infinite effects */
+	public final List<PotionEffect> effects;
+
+	/** The money the kit costs and the money it pays out */
+	public final double cost, cash;
+
+	/** The permission nodes that exempt a player from paying for the kit */
+	public final String noChargeNode, noChargeKitNode;
+
+	/**
+	 * Compiles a kit's give plan.
+	 * @param kit the kit
+	 */
+	public GivePlan(Kit kit){
+		clearAll = kit.booleanAttribute(Attribute.CLEAR_ALL) || (kit.booleanAttribute(Attribute.CLEAR_INVENTORY) && kit.booleanAttribute(Attribute.CLEAR_EFFECTS) && kit.booleanAttribute(Attribute.CLEAR_PERMISSIONS));
+		clearInventory = kit.booleanAttribute(Attribute.CLEAR_INVENTORY);
+		clearEffects = kit.booleanAttribute(Attribute.CLEAR_EFFECTS);
+		clearPermissions = kit.booleanAttribute(Attribute.CLEAR_PERMISSIONS);
+		upgrade = kit.getParent() != null && kit.booleanAttribute(Attribute.UPGRADE);
+
+		List<Placement> placements = new ArrayList<Placement>(kit.items.size());
+		for(ItemStack stack : kit.items)
+			if(stack != null)
+				placements.add(new Placement(stack));
+		this.placements = Collections.unmodifiableList(placements);
+
+		List<PotionEffect> effects = new ArrayList<PotionEffect>(kit.effects.size());
+		if(kit.booleanAttribute(Attribute.INFINITE_EFFECTS))
+			for(PotionEffect effect : kit.effects)
+				effects.add(new PotionEffect(effect.getType(), Integer.MAX_VALUE, effect.getAmplifier()));
+		else
+			effects.addAll(kit.effects);
+		this.effects = Collections.unmodifiableList(effects);
+
+		cost = kit.doubleAttribute(Attribute.COST);
+		cash = kit.doubleAttribute(Attribute.CASH);
+		noChargeNode = "kitmaster.nocharge";
+		noChargeKitNode = "kitmaster.nocharge." + kit.name;
+	}
+
+	/** The ways an item can be placed in a player's inventory */
+	public enum Route{
+		/** Equipped in an armor slot if it's better than what's there, otherwise added to the inventory */
+		ARMOR,
+		/** Equipped in the held item slot if it's better than what's there, otherwise added to the inventory */
+		WEAPON,
+		/** Added to the inventory */
+		INVENTORY
+	};
+
+	/**
+	 * One of a kit's items, along with where it goes and how it is split into stacks.
+	 */
+	public static class Placement{
+
+		/** The item */
+		public final ItemStack stack;
+
+		/** Where the item goes */
+		public final Route route;
+
+		/** Whether the item's name or lore mention the player, so it has to be personalized for each player */
+		public final boolean personalized;
+
+		/** The item's meta, name, and lore, with the macros in the name and lore already found, or null if the item isn't personalized */
+		private final ItemMeta meta;
+		private final MacroText name;
+		private final List<MacroText> lore;
+
+		/** The largest stack the item can be added to the inventory in */
+		public final int maxStackSize;
+
+		/** The stacks the item is added to the inventory in, already split by the largest stack size */
+		public final List<ItemStack> parts;
+
+		/** The armor or weapon the item represents, or null if it is placed in the inventory */
+		public final Armor armor;
+		public final Weapon weapon;
+
+		/** The item's score as armor or as a weapon, see ItemScorer, or ItemScorer.NONE if it is placed in the inventory */
+		public final long score;
+
+		private Placement(ItemStack stack){
+			this.stack = stack;
+			route = InventoryController.getRoute(stack);
+			armor = route == Route.ARMOR ? new Armor(stack) : null;
+			weapon = route == Route.WEAPON ? new Weapon(stack) : null;
+			score = route == Route.ARMOR ? ItemScorer.scoreArmor(stack) : route == Route.WEAPON ? ItemScorer.scoreWeapon(stack) : ItemScorer.NONE;
+
+			ItemMeta meta = stack.hasItemMeta() ? stack.getItemMeta() : null;
+			MacroText name = meta != null && meta.hasDisplayName() ? new MacroText(meta.getDisplayName()) : null;
+			List<MacroText> lore = new ArrayList<MacroText>();
+			if(meta != null && meta.hasLore())
+				for(String line : meta.getLore())
+					lore.add(new MacroText(line));
+			boolean personalized = name != null && name.hasMacros();
+			for(MacroText line : lore)
+				personalized |= line.hasMacros();
+			this.personalized = personalized;
+			this.meta = personalized ? meta : null;
+			this.name = personalized ? name : null;
+			this.lore = personalized ? lore : null;
+
+			maxStackSize = InventoryController.getMaxStackSize(stack);
+			List<ItemStack> parts = new ArrayList<ItemStack>();
+			if(stack.getAmount() <= maxStackSize || maxStackSize == 64)
+				parts.add(stack);
+			else
+				for(int amount = stack.getAmount(); amount > 0; amount -= maxStackSize){
+					ItemStack part = stack.clone();
+					part.setAmount(Math.min(amount, maxStackSize));
+					parts.add(part);
+				}
+			this.parts = Collections.unmodifiableList(parts);
+		}
+
+		/**
+		 * Gets a copy of the item personalized for a player, with %player% in its name and lore replaced with the player's name and %display% with their display name.
+		 * The copy's meta is written once, from the macros found when the item was planned.
+		 * @param player the player
+		 * @return the personalized copy, or a plain copy if the item isn't personalized
+		 */
+		public ItemStack personalize(Player player){
+			ItemStack copy = stack.clone();
+			if(!personalized)
+				return copy;
+			ItemMeta meta = this.meta.clone();
+			String playerName = player.getName(), displayName = player.getDisplayName();
+			if(name != null)
+				meta.setDisplayName(name.fill(playerName, displayName));
+			if(!lore.isEmpty()){
+				List<String> lines = new ArrayList<String>(lore.size());
+				for(MacroText line : lore)
+					lines.add(line.fill(playerName, displayName));
+				meta.setLore(lines);
+			}
+			copy.setItemMeta(meta);
+			return copy;
+		}
+
+	}
+
+	/**
+	 * Text that may contain the %player% and %display% macros, split up ahead of time into the literal text between the macros.
+	 */
+	private static class MacroText{
+
+		private static final String[] MACROS = {"%player%", "%display%"};
+
+		/** The literal text, which has one more piece than there are macros */
+		private final String[] literals;
+
+		/** Which macro comes after each piece of literal text, as an index into MACROS */
+		private final int[] macros;
+
+		public MacroText(String text){
+			List<String> literals = new ArrayList<String>();
+			List<Integer> macros = new ArrayList<Integer>();
+			int from = 0;
+			while(true){
+				int at = -1, macro = -1;
+				for(int i = 0; i < MACROS.length; i++){
+					int found = text.indexOf(MACROS[i], from);
+					if(found != -1 && (at == -1 || found < at)){
+						at = found;
+						macro = i;
+					}
+				}
+				if(at == -1)
+					break;
+				literals.add(text.substring(from, at));
+				macros.add(macro);
+				from = at + MACROS[macro].length();
+			}
+			literals.add(text.substring(from));
+			this.literals = literals.toArray(new String[literals.size()]);
+			this.macros = new int[macros.size()];
+			for(int i = 0; i < this.macros.length; i++)
+				this.macros[i] = macros.get(i);
+		}
+
+		public boolean hasMacros(){
+			return macros.length > 0;
+		}
+
+		public String fill(String playerName, String displayName){
+			if(macros.length == 0)
+				return literals[0];
+			StringBuilder text = new StringBuilder(literals[0]);
+			for(int i = 0; i < macros.length; i++)
+				text.append(macros[i] == 0 ? playerName : displayName).append(literals[i + 1]);
+			return text.toString();
+		}
+
+	}
+
+}
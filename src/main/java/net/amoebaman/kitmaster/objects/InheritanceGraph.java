@@ -0,0 +1,107 @@
+package net.amoebaman.kitmaster.objects;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.amoebaman.kitmaster.KitMaster;
+
+/**
+ * The parent relationships between a list of kits, compiled into a forest.
+ * Kits that inherit from each other in a cycle are rejected: they are reported in the console, and none of them are given a parent.
+ * <p>
+ * Kits are referred to by their position in the list.
+ *
+ * @author Dennison
+ */
+class InheritanceGraph {
+
+	/** The position of each kit's parent, or -1 if it has none */
+	private final int[] parents;
+
+	/** The positions of all kits, ordered so that every kit comes after its parent */
+	private final int[] order;
+
+	/**
+	 * Compiles the parent relationships between kits.
+	 * @param kits the kits
+	 * @param parents the position of each kit's parent, or -1 if it has none - this array is not modified
+	 */
+	public InheritanceGraph(List<Kit> kits, int[] parents){
+		this.parents = Arrays.copyOf(parents, parents.length);
+		rejectCycles(kits);
+
+		int[] childCounts = new int[parents.length];
+		for(int parent : this.parents)
+			if(parent >= 0)
+				childCounts[parent]++;
+		int[][] children = new int[parents.length][];
+		for(int i = 0; i < parents.length; i++)
+			children[i] = new int[childCounts[i]];
+		Arrays.fill(childCounts, 0);
+		for(int i = 0; i < parents.length; i++)
+			if(this.parents[i] >= 0)
+				children[this.parents[i]][childCounts[this.parents[i]]++] = i;
+
+		/*
+		 * Walk down from the roots, breadth first, so every kit is reached after its parent
+		 */
+		order = new int[parents.length];
+		int size = 0;
+		for(int i = 0; i < parents.length; i++)
+			if(this.parents[i] < 0)
+				order[size++] = i;
+		for(int next = 0; next < size; next++)
+			for(int child : children[order[next]])
+				order[size++] = child;
+	}
+
+	/**
+	 * Each kit has at most one parent, so following parents from any kit either ends at a root or runs into a cycle
+	 */
+	private void rejectCycles(List<Kit> kits){
+		/* 0 = unvisited, 1 = on the current path, 2 = done */
+		byte[] state = new byte[parents.length];
+		int[] path = new int[parents.length];
+		for(int start = 0; start < parents.length; start++){
+			int length = 0;
+			int current = start;
+			while(current >= 0 && state[current] == 0){
+				state[current] = 1;
+				path[length++] = current;
+				current = parents[current];
+			}
+			if(current >= 0 && state[current] == 1){
+				int cycleStart = 0;
+				while(path[cycleStart] != current)
+					cycleStart++;
+				StringBuilder cycle = new StringBuilder();
+				for(int i = cycleStart; i < length; i++)
+					cycle.append(kits.get(path[i]).name).append(" -> ");
+				cycle.append(kits.get(current).name);
+				KitMaster.logger().severe("Kits cannot inherit from themselves, but these kits form a cycle: " + cycle + " - none of them will inherit from a parent");
+				for(int i = cycleStart; i < length; i++)
+					parents[path[i]] = -1;
+			}
+			for(int i = 0; i < length; i++)
+				state[path[i]] = 2;
+		}
+	}
+
+	/**
+	 * Gets the position of a kit's parent.
+	 * @param index the position of the kit
+	 * @return the position of its parent, or -1 if it has none
+	 */
+	public int parentOf(int index){
+		return parents[index];
+	}
+
+	/**
+	 * Gets the positions of all kits, ordered so that every kit comes after its parent.
+	 * @return the positions of all kits
+	 */
+	public int[] order(){
+		return Arrays.copyOf(order, order.length);
+	}
+
+}
@@ -1,6 +1,7 @@
 package net.amoebaman.kitmaster.objects;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,40 +22,121 @@ public class Kit implements Cloneable, ConfigurationSerializable{
 	 */
 	public final String name;
 	
+	/**
+	 * The ordinal of the kit, which is shared by every kit with the same name and never changes.  See KitRegistry.ordinalOf(String)
+	 */
+	public final int ordinal;
+	
+	/**
+	 * The permission nodes that grant access to the kit through signs, through commands, and through both
+	 */
+	public final String signNode, commandNode, kitNode;
+	
 	/**
 	 * The set of items that the kit will give
 	 */
-	public final ArrayList<ItemStack> items = new ArrayList<ItemStack>();
+	public final List<ItemStack> items;
 	
 	/**
 	 * The set of potion effects that the kit will apply
 	 */
-	public final ArrayList<PotionEffect> effects = new ArrayList<PotionEffect>();
+	public final List<PotionEffect> effects;
 	
 	/**
 	 * The set of (temporary) permissions that the kit will grant
 	 */
-	public final ArrayList<String> permissions = new ArrayList<String>();
+	public final List<String> permissions;
 	
 	/**
 	 * The set of attributes that have been defined for the kit
 	 */
-	public final HashMap<Attribute, Object> attributes = new HashMap<Attribute, Object>();
+	public final Map<Attribute, Object> attributes;
+	
+	/**
+	 * The resolved parent of the kit, only used if the kit is resolved
+	 */
+	private final Kit parent;
 	
 	/**
-	 * Constructs a kit from the given specifications.  The lists/maps will be copied onto the kit's lists/maps rather than adopted.
+	 * The kit followed by its parent, its parent's parent, and so on, only used if the kit is resolved
+	 */
+	private final List<Kit> lineage;
+	
+	/**
+	 * The value of every attribute indexed by ordinal, with inheritance and defaults already applied, or null if the kit is not resolved
+	 */
+	private final Object[] resolved;
+	
+	/**
+	 * The compiled plan for giving the kit, only used if the kit is resolved
+	 */
+	private final GivePlan plan;
+	
+	/**
+	 * Constructs a kit from the given specifications.  The lists/maps will be copied onto the kit's lists/maps rather than adopted, and the items themselves are copied as well.
 	 * @param name The name of the kit
 	 * @param items The items of the kit
 	 * @param effects The applied potion effects of the kit
 	 * @param permissions The granted permissions of the kit
 	 * @param attributes The defined attributes of the kit
 	 */
-	public Kit(String name, List<ItemStack> items, List<PotionEffect> effects, List<String> permissions, HashMap<Attribute, Object> attributes){
+	public Kit(String name, List<ItemStack> items, List<PotionEffect> effects, List<String> permissions, Map<Attribute, Object> attributes){
 		this.name = name;
-		this.items.addAll(items);
-		this.effects.addAll(effects);
-		this.permissions.addAll(permissions);
-		this.attributes.putAll(attributes);
+		this.ordinal = KitRegistry.ordinalOf(name);
+		this.signNode = "kitmaster.sign." + name;
+		this.commandNode = "kitmaster.cmd." + name;
+		this.kitNode = "kitmaster.kit." + name;
+		this.items = copyItems(items);
+		this.effects = new ArrayList<PotionEffect>(effects);
+		this.permissions = new ArrayList<String>(permissions);
+		this.attributes = new HashMap<Attribute, Object>(attributes);
+		this.parent = null;
+		this.lineage = null;
+		this.resolved = null;
+		this.plan = null;
+	}
+	
+	/**
+	 * Constructs an immutable, resolved snapshot of a kit.
+	 * @param kit The kit to resolve
+	 * @param parent The resolved parent of the kit, or null if it has none
+	 */
+	private Kit(Kit kit, Kit parent){
+		this.name = kit.name;
+		this.ordinal = kit.ordinal;
+		this.signNode = kit.signNode;
+		this.commandNode = kit.commandNode;
+		this.kitNode = kit.kitNode;
+		this.items = Collections.unmodifiableList(copyItems(kit.items));
+		this.effects = Collections.unmodifiableList(new ArrayList<PotionEffect>(kit.effects));
+		this.permissions = Collections.unmodifiableList(new ArrayList<String>(kit.permissions));
+		HashMap<Attribute, Object> attributes = new HashMap<Attribute, Object>(kit.attributes);
+		if(parent != null)
+			for(Attribute type : parent.attributes.keySet())
+				if(!attributes.containsKey(type) && type != Attribute.IDENTIFIER)
+					attributes.put(type, parent.getAttribute(type));
+		this.attributes = Collections.unmodifiableMap(attributes);
+		this.parent = parent;
+		List<Kit> lineage = new ArrayList<Kit>();
+		lineage.add(this);
+		if(parent != null)
+			lineage.addAll(parent.lineage);
+		this.lineage = Collections.unmodifiableList(lineage);
+		this.resolved = new Object[Attribute.values().length];
+		for(Attribute type : Attribute.values())
+			resolved[type.ordinal()] = attributes.containsKey(type) ? attributes.get(type) : type.def;
+		this.plan = new GivePlan(this);
+	}
+	
+	/**
+	 * Copies a list of items along with the items themselves, so that a kit never shares its items with anything else.
+	 * Resolved kits hand their items to every player who takes them, so changing one of them would change the kit.
+	 */
+	private static List<ItemStack> copyItems(List<ItemStack> items){
+		List<ItemStack> copies = new ArrayList<ItemStack>(items.size());
+		for(ItemStack stack : items)
+			copies.add(stack == null ? null : stack.clone());
+		return copies;
 	}
 	
 	/**
@@ -114,6 +196,8 @@ public class Kit implements Cloneable, ConfigurationSerializable{
 	 * @return The value of the attribute, or the attribute's default value if it was not explicitly defined
 	 */
 	public Object getAttribute(Attribute type){
+		if(resolved != null)
+			return resolved[type.ordinal()];
 		if(attributes.containsKey(type))
 			return attributes.get(type);
 		return type.def;
@@ -146,6 +230,7 @@ public class Kit implements Cloneable, ConfigurationSerializable{
 	
 	/**
 	 * Defines/redefines the value of an attribute for this kit.  If newValue does not match type's enumerated class type, the operation will fail.
+	 * Resolved kits are immutable, and will throw an UnsupportedOperationException.  Use copy() to get a kit that can be modified.
 	 * @param type The attribute type to set
 	 * @param newValue The new value for the attribute
 	 * @return False if <code>newValue</code> did not match the designated class of <code>type</code>, true otherwise
@@ -164,32 +249,80 @@ public class Kit implements Cloneable, ConfigurationSerializable{
 	 * @return The parent kit, or null if no parent kit is found
 	 */
 	public Kit getParent(){
+		if(resolved != null)
+			return parent;
 		return KitHandler.getKit((String) attributes.get(Attribute.PARENT));
 	}
 	
 	/**
-	 * Gets a new copy of this kit that replaces all undefined attributes of this kit with those defined by its parent.
+	 * Gets this kit's line of inheritance: this kit, followed by its parent, its parent's parent, and so on.
+	 * For resolved kits this is worked out once, when kits are loaded.
+	 * @return An unmodifiable list of this kit and its ancestors, nearest first
+	 */
+	public List<Kit> getLineage(){
+		if(resolved != null)
+			return lineage;
+		return applyParentAttributes().getLineage();
+	}
+	
+	/**
+	 * Gets the plan for giving this kit: what it clears, where its items go, the effects it applies, and what it costs.
+	 * For resolved kits this is compiled once, when kits are loaded.
+	 * @return the give plan
+	 */
+	public GivePlan getPlan(){
+		if(resolved != null)
+			return plan;
+		return new GivePlan(this);
+	}
+	
+	/**
+	 * Tests whether this kit is a resolved snapshot, with its inheritance flattened and its attribute defaults baked in.
+	 * Resolved kits are immutable.
+	 * @return True if the kit is resolved
+	 */
+	public boolean isResolved(){
+		return resolved != null;
+	}
+	
+	/**
+	 * Gets a resolved, immutable snapshot of this kit.
+	 * @param parent The resolved parent of this kit, or null if it has none
+	 * @return The resolved kit
+	 */
+	Kit resolve(Kit parent){
+		return new Kit(this, parent);
+	}
+	
+	/**
+	 * Gets a version of this kit that replaces all undefined attributes of this kit with those defined by its parent.
 	 * This call will cascade recursively upwards, applying parents of parents as well.
-	 * @return A copy of this kit with its parent's (and grandparents') attributes applied
+	 * Kits retrieved from the KitHandler are already resolved, and will return themselves.
+	 * @return This kit if it is already resolved, otherwise a resolved copy of this kit
 	 */
 	public Kit applyParentAttributes(){
-		Kit clone = clone();
-		Kit parent = clone.getParent();
-		if(parent != null)
-			for(Attribute type : parent.attributes.keySet())
-				if(!clone.attributes.containsKey(type) && type != Attribute.IDENTIFIER)
-					clone.attributes.put(type, parent.getAttribute(type));
-		return clone;
+		if(resolved != null)
+			return this;
+		return resolve(getParent());
 	}
 	
 	/**
-	 * Clones the kit for safe modification
-	 * @return A perfect copy of this kit
+	 * Gets a modifiable copy of this kit.  Attributes inherited by a resolved kit are carried into the copy as its own.
+	 * This is the only way to get a modifiable kit from a resolved one, such as for use with GiveKitEvent.setKit(Kit).
+	 * @return A modifiable copy of this kit
 	 */
-	public Kit clone(){
+	public Kit copy(){
 		return new Kit(name, items, effects, permissions, attributes);
 	}
 	
+	/**
+	 * Clones the kit for safe modification.  See copy()
+	 * @return A modifiable copy of this kit
+	 */
+	public Kit clone(){
+		return copy();
+	}
+	
 	/**
 	 * Serializes this kit into a Map for easy Configuration storage
 	 * @returns A map of key to value that can be placed into a configuration and parsed back with the KitHandler to get the same kit
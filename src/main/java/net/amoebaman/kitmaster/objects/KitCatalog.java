@@ -0,0 +1,81 @@
+package net.amoebaman.kitmaster.objects;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * A complete, consistent snapshot of everything KitMaster loads from its configuration files: the kits, the custom item data, and the messages.
+ * Catalogs are built off to the side and then published all at once, so readers never see a half-loaded catalog.
+ *
+ * @author Dennison
+ */
+public class KitCatalog {
+
+	private static final AtomicInteger VERSIONS = new AtomicInteger();
+
+	/** The version of this catalog, which increases every time a new catalog is built */
+	public final int version;
+
+	/** The kits of this catalog */
+	public final KitRegistry kits;
+
+	/** The custom data of this catalog */
+	public final YamlConfiguration customData;
+
+	/** The sections of the custom data */
+	public final ConfigurationSection books, items, potions, bursts, fireworks;
+
+	/** The messages of this catalog */
+	public final ConfigurationSection messages;
+
+	/**
+	 * Constructs a catalog.
+	 * @param kits the kits
+	 * @param customData the custom data
+	 * @param messages the messages
+	 */
+	public KitCatalog(KitRegistry kits, YamlConfiguration customData, ConfigurationSection messages){
+		this.version = VERSIONS.incrementAndGet();
+		this.kits = kits;
+		this.customData = customData;
+		books = getSection(customData, "books");
+		items = getSection(customData, "items");
+		potions = getSection(customData, "potions");
+		bursts = getSection(customData, "bursts");
+		fireworks = getSection(customData, "fireworks");
+		this.messages = messages;
+	}
+
+	/**
+	 * Constructs an empty catalog.
+	 */
+	public KitCatalog(){
+		this(new KitRegistry(new ArrayList<Kit>()), new YamlConfiguration(), new YamlConfiguration());
+	}
+
+	private static ConfigurationSection getSection(YamlConfiguration yaml, String path){
+		return yaml.isConfigurationSection(path) ? yaml.getConfigurationSection(path) : yaml.createSection(path);
+	}
+
+	/**
+	 * Gets a copy of this catalog with different kits.
+	 * @param kits the new kits
+	 * @return the new catalog
+	 */
+	public KitCatalog withKits(KitRegistry kits){
+		return new KitCatalog(kits, customData, messages);
+	}
+
+	/**
+	 * Gets a copy of this catalog with different messages.
+	 * @param messages the new messages
+	 * @return the new catalog
+	 */
+	public KitCatalog withMessages(ConfigurationSection messages){
+		return new KitCatalog(kits, customData, messages);
+	}
+
+}
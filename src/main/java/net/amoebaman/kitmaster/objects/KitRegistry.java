@@ -0,0 +1,312 @@
+package net.amoebaman.kitmaster.objects;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.amoebaman.kitmaster.enums.Attribute;
+
+/**
+ * An indexed collection of kits.  Kits can be looked up by name or by identifier, ignoring case, through a hash index for exact matches and a prefix index for abbreviations.
+ * When an abbreviation matches more than one kit, the kit that was registered first wins.
+ * <p>
+ * Kits are compiled into resolved snapshots when the registry is constructed, and lookups return the resolved kits directly.
+ * Registries are never modified after construction, so they can be safely shared between threads.
+ * <p>
+ * Every kit name is assigned a dense ordinal the first time it is seen, ignoring case.  Ordinals are never reassigned, so a kit keeps its ordinal across reloads, and per-player state can be indexed by ordinal.
+ *
+ * @author Dennison
+ */
+public class KitRegistry {
+
+	/** The ordinals assigned to kit names, keyed by lower case name */
+	private static final HashMap<String, Integer> ORDINALS = new HashMap<String, Integer>();
+
+	/** The kit names that ordinals were assigned to, indexed by ordinal */
+	private static final List<String> ORDINAL_NAMES = new ArrayList<String>();
+
+	/** The registered kits as they were defined, in registration order */
+	private final List<Kit> defined = new ArrayList<Kit>();
+
+	/** The resolved kits, in registration order */
+	private final List<Kit> list = new ArrayList<Kit>();
+
+	/** The exact match indices, keyed by lower case name/identifier, pointing to positions in the list */
+	private final HashMap<String, Integer> names = new HashMap<String, Integer>(), identifiers = new HashMap<String, Integer>();
+
+	/** The abbreviation indices */
+	private final PrefixIndex namePrefixes = new PrefixIndex(), identifierPrefixes = new PrefixIndex();
+
+	/** The resolved kits, ordered so that every kit comes after its parent */
+	private final List<Kit> inheritanceOrder = new ArrayList<Kit>();
+
+	/** The resolved kits, indexed by ordinal */
+	private Kit[] ordinals;
+
+	/** The ordinals of kits that restrict the use of other kits */
+	private final BitSet restricting = new BitSet();
+
+	/** Resolved kits from a previous registry that may be reused, keyed by the exact kit they were resolved from, or null if there are none - only used during construction */
+	private Map<Kit, Kit> reusable;
+
+	/**
+	 * Constructs a registry from a list of kits, as they were defined.  If two kits share the same name, the later one replaces the earlier one, and is considered to be registered at the later position.
+	 * @param kits the kits to register
+	 */
+	public KitRegistry(List<Kit> kits){
+		this(kits, null);
+	}
+
+	private KitRegistry(List<Kit> kits, Map<Kit, Kit> reusable){
+		LinkedHashMap<String, Kit> byName = new LinkedHashMap<String, Kit>();
+		for(Kit kit : kits)
+			if(kit != null && kit.name != null){
+				byName.remove(kit.name);
+				byName.put(kit.name, kit);
+			}
+		defined.addAll(byName.values());
+		this.reusable = reusable;
+		compile();
+	}
+
+	/**
+	 * Gets a copy of this registry with one more kit registered.  If a kit with the same name is already registered, it will be replaced, and the new kit will be considered the most recently registered.
+	 * @param kit the kit to register
+	 * @return the new registry
+	 */
+	public KitRegistry with(Kit kit){
+		List<Kit> kits = new ArrayList<Kit>(defined);
+		kits.add(kit);
+		return new KitRegistry(kits);
+	}
+
+	/**
+	 * Gets a copy of this registry with some kits redefined.  Kits that are already registered are replaced in place, and new kits are registered after all the others.
+	 * Only the redefined kits and the kits that inherit from them are resolved again; every other kit is carried over as is.
+	 * @param kits the redefined kits
+	 * @return the new registry
+	 */
+	public KitRegistry update(List<Kit> kits){
+		LinkedHashMap<String, Kit> byName = new LinkedHashMap<String, Kit>();
+		for(Kit kit : defined)
+			byName.put(kit.name, kit);
+		for(Kit kit : kits)
+			if(kit != null && kit.name != null)
+				byName.put(kit.name, kit);
+		IdentityHashMap<Kit, Kit> reusable = new IdentityHashMap<Kit, Kit>();
+		for(int i = 0; i < defined.size(); i++)
+			reusable.put(defined.get(i), list.get(i));
+		return new KitRegistry(new ArrayList<Kit>(byName.values()), reusable);
+	}
+
+	/**
+	 * Gets a kit by its name, ignoring case.  If no kit matches precisely, abbreviations will be considered.
+	 * @param name the name of the kit
+	 * @return the resolved kit, or null if no kit was found
+	 */
+	public Kit get(String name){
+		if(name == null || name.isEmpty())
+			return null;
+		return at(indexOf(names, namePrefixes, name.toLowerCase()));
+	}
+
+	/**
+	 * Gets a kit by its identifier, ignoring case.  If no kit matches precisely, abbreviations will be considered.
+	 * @param identifier the identifier of the kit
+	 * @return the resolved kit, or null if no kit was found
+	 */
+	public Kit getByIdentifier(String identifier){
+		if(identifier == null || identifier.isEmpty())
+			return null;
+		return at(indexOf(identifiers, identifierPrefixes, identifier.toLowerCase()));
+	}
+
+	/**
+	 * Gets a kit by its ordinal.
+	 * @param ordinal the ordinal of the kit
+	 * @return the resolved kit, or null if no kit with that ordinal is registered
+	 */
+	public Kit getByOrdinal(int ordinal){
+		return ordinal >= 0 && ordinal < ordinals.length ? ordinals[ordinal] : null;
+	}
+
+	/**
+	 * Gets the limit of the ordinals of the registered kits, so that arrays indexed by ordinal can be sized.
+	 * @return one more than the highest ordinal of any registered kit
+	 */
+	public int getOrdinalLimit(){
+		return ordinals.length;
+	}
+
+	/**
+	 * Tests whether any of a set of kits restrict the use of other kits.
+	 * @param kits the ordinals of the kits
+	 * @return true if any of the kits restrict other kits
+	 */
+	public boolean restrictsOtherKits(BitSet kits){
+		return restricting.intersects(kits);
+	}
+
+	/**
+	 * Gets the ordinal of a kit name, assigning it a new one if it has never been seen before.
+	 * @param name the name of the kit
+	 * @return the ordinal of the kit
+	 */
+	public static synchronized int ordinalOf(String name){
+		String key = name.toLowerCase();
+		Integer ordinal = ORDINALS.get(key);
+		if(ordinal == null){
+			ordinal = ORDINAL_NAMES.size();
+			ORDINALS.put(key, ordinal);
+			ORDINAL_NAMES.add(name);
+		}
+		return ordinal;
+	}
+
+	/**
+	 * Gets the kit name that an ordinal was assigned to, whether or not a kit with that name is still registered.
+	 * @param ordinal the ordinal
+	 * @return the name of the kit, as it was first seen
+	 */
+	public static synchronized String nameOf(int ordinal){
+		return ORDINAL_NAMES.get(ordinal);
+	}
+
+	/**
+	 * Gets all registered kits, in registration order.
+	 * @return an unmodifiable list of the resolved kits
+	 */
+	public List<Kit> getKits(){
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Gets all registered kits, ordered so that every kit comes after its parent.
+	 * @return an unmodifiable list of the resolved kits
+	 */
+	public List<Kit> getKitsInInheritanceOrder(){
+		return Collections.unmodifiableList(inheritanceOrder);
+	}
+
+	/**
+	 * Gets the number of registered kits.
+	 * @return the number of kits
+	 */
+	public int size(){
+		return list.size();
+	}
+
+	/**
+	 * Gets all registered kits as they were defined, before they were resolved, in registration order.
+	 * @return an unmodifiable list of the defined kits
+	 */
+	public List<Kit> getDefinedKits(){
+		return Collections.unmodifiableList(defined);
+	}
+
+	private Kit at(int index){
+		return index < 0 ? null : list.get(index);
+	}
+
+	private static int indexOf(HashMap<String, Integer> exact, PrefixIndex prefixes, String key){
+		Integer index = exact.get(key);
+		return index != null ? index : prefixes.get(key);
+	}
+
+	/**
+	 * Builds the indices and compiles every registered kit into its resolved snapshot.
+	 * Kits that inherit from themselves are reported and left without a parent.
+	 */
+	private void compile(){
+		for(int i = 0; i < defined.size(); i++){
+			Kit kit = defined.get(i);
+			String name = kit.name.toLowerCase();
+			if(!names.containsKey(name))
+				names.put(name, i);
+			namePrefixes.put(name, i);
+			String identifier = kit.stringAttribute(Attribute.IDENTIFIER);
+			if(identifier != null && !identifier.isEmpty()){
+				identifier = identifier.toLowerCase();
+				if(!identifiers.containsKey(identifier))
+					identifiers.put(identifier, i);
+				identifierPrefixes.put(identifier, i);
+			}
+		}
+		/*
+		 * Compile the parent relationships once, then resolve every kit after its parent
+		 */
+		int[] parents = new int[defined.size()];
+		for(int i = 0; i < defined.size(); i++){
+			String parentName = defined.get(i).stringAttribute(Attribute.PARENT);
+			parents[i] = parentName == null || parentName.isEmpty() ? -1 : indexOf(names, namePrefixes, parentName.toLowerCase());
+		}
+		InheritanceGraph graph = new InheritanceGraph(defined, parents);
+		Kit[] resolved = new Kit[defined.size()];
+		for(int index : graph.order()){
+			Kit kit = defined.get(index);
+			Kit parent = graph.parentOf(index) < 0 ? null : resolved[graph.parentOf(index)];
+			/*
+			 * If neither the kit nor anything it inherits from has changed, the old snapshot is still good
+			 */
+			Kit previous = reusable == null ? null : reusable.get(kit);
+			resolved[index] = previous != null && previous.getParent() == parent ? previous : kit.resolve(parent);
+		}
+		Collections.addAll(list, resolved);
+		for(int index : graph.order())
+			inheritanceOrder.add(resolved[index]);
+		reusable = null;
+		
+		int size = 0;
+		for(Kit kit : list)
+			size = Math.max(size, kit.ordinal + 1);
+		ordinals = new Kit[size];
+		for(Kit kit : list){
+			if(ordinals[kit.ordinal] == null)
+				ordinals[kit.ordinal] = kit;
+			if(kit.booleanAttribute(Attribute.RESTRICT_KITS))
+				restricting.set(kit.ordinal);
+		}
+	}
+
+	/**
+	 * A character trie where each node remembers the first kit registered beneath it, so that abbreviations resolve in a single walk down the trie.
+	 */
+	private static class PrefixIndex{
+
+		private final Node root = new Node();
+
+		public void put(String key, int index){
+			Node node = root;
+			for(int i = 0; i < key.length(); i++){
+				Character c = key.charAt(i);
+				Node child = node.children.get(c);
+				if(child == null){
+					child = new Node();
+					node.children.put(c, child);
+				}
+				node = child;
+				if(node.first < 0)
+					node.first = index;
+			}
+		}
+
+		public int get(String prefix){
+			Node node = root;
+			for(int i = 0; i < prefix.length() && node != null; i++)
+				node = node.children.get(prefix.charAt(i));
+			return node == null ? -1 : node.first;
+		}
+
+		private static class Node{
+			private final HashMap<Character, Node> children = new HashMap<Character, Node>(4);
+			private int first = -1;
+		}
+
+	}
+
+}
@@ -0,0 +1,191 @@
+package net.amoebaman.kitmaster.objects;
+
+import java.util.EnumMap;
+
+import net.amoebaman.kitmaster.controllers.ItemController;
+import net.amoebaman.kitmaster.objects.Armor.ArmorLevel;
+import net.amoebaman.kitmaster.objects.Armor.ArmorType;
+import net.amoebaman.kitmaster.objects.Weapon.WeaponLevel;
+import net.amoebaman.kitmaster.objects.Weapon.WeaponType;
+import net.amoebaman.kitmaster.utilities.ParseItemException;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * What KitMaster needs to know about every Material: whether it's armor or a weapon and of what kind, and the largest stack it's given in.
+ * The table is built whenever the configuration is loaded, so looking a Material up never has to examine its name or read the configuration.
+ *
+ * @author Dennison
+ */
+public class MaterialTable {
+
+	private static volatile MaterialTable current = new MaterialTable(null);
+
+	/** Whether wool and skulls are considered helmets */
+	public final boolean woolHats, skullHats;
+
+	private final EnumMap<Material, Entry> entries = new EnumMap<Material, Entry>(Material.class);
+
+	private MaterialTable(ConfigurationSection config){
+		woolHats = config != null && config.getBoolean("inventory.woolHats");
+		skullHats = config != null && config.getBoolean("inventory.skullHats");
+		EnumMap<Material, Integer> maxStacks = new EnumMap<Material, Integer>(Material.class);
+		if(config != null && config.isConfigurationSection("maxStacks"))
+			for(String key : config.getConfigurationSection("maxStacks").getKeys(false)){
+				try{
+					maxStacks.put(ItemController.getBaseStack(key).getType(), config.getInt("maxStacks." + key));
+				}
+				catch(ParseItemException pie){}
+			}
+		for(Material mat : Material.values())
+			entries.put(mat, new Entry(mat, maxStacks.containsKey(mat) ? maxStacks.get(mat) : mat.getMaxStackSize()));
+	}
+
+	/**
+	 * Gets the current table.
+	 * @return the table
+	 */
+	public static MaterialTable get(){
+		return current;
+	}
+
+	/**
+	 * Rebuilds the table from the configuration.  This should be done whenever the configuration is loaded.
+	 * @param config the configuration
+	 */
+	public static void rebuild(ConfigurationSection config){
+		current = new MaterialTable(config);
+	}
+
+	/**
+	 * Looks up a Material.
+	 * @param mat the Material
+	 * @return the Material's entry, or null if the Material is null
+	 */
+	public Entry of(Material mat){
+		return mat == null ? null : entries.get(mat);
+	}
+
+	/**
+	 * Tests whether a Material counts as armor, taking into account whether wool and skulls are considered helmets.
+	 * @param mat the Material
+	 * @return true if the Material is armor
+	 */
+	public boolean isArmor(Material mat){
+		Entry entry = of(mat);
+		if(entry == null || entry.armorType == null || entry.armorLevel == null)
+			return false;
+		return isArmor(entry.armorLevel);
+	}
+
+	/**
+	 * Tests whether a level of armor counts as armor, taking into account whether wool and skulls are considered helmets.
+	 * @param lvl the level
+	 * @return true if the level is armor
+	 */
+	public boolean isArmor(ArmorLevel lvl){
+		if(lvl == ArmorLevel.WOOL)
+			return woolHats;
+		if(lvl == ArmorLevel.SKULL)
+			return skullHats;
+		return true;
+	}
+
+	/**
+	 * Tests whether a Material is a weapon.
+	 * @param mat the Material
+	 * @return true if the Material is a weapon
+	 */
+	public boolean isWeapon(Material mat){
+		Entry entry = of(mat);
+		return entry != null && entry.weaponType != null && entry.weaponLevel != null;
+	}
+
+	/**
+	 * Gets the largest stack a Material will be added to an inventory in, which is the Material's own maximum unless it is overridden in the configuration.
+	 * @param mat the Material
+	 * @return the largest stack size
+	 */
+	public int getMaxStackSize(Material mat){
+		return entries.get(mat).maxStackSize;
+	}
+
+	/**
+	 * What the table knows about one Material.
+	 */
+	public static class Entry{
+
+		/** The type and level of armor the Material is, or null if it isn't armor */
+		public final ArmorType armorType;
+		public final ArmorLevel armorLevel;
+
+		/** The type and level of weapon the Material is, or null if it isn't a weapon */
+		public final WeaponType weaponType;
+		public final WeaponLevel weaponLevel;
+
+		/** The largest stack the Material will be added to an inventory in */
+		public final int maxStackSize;
+
+		private Entry(Material mat, int maxStackSize){
+			String name = mat.name();
+			ArmorType armorType = null;
+			ArmorLevel armorLevel = null;
+			if(name.contains("HELMET"))
+				armorType = ArmorType.HELMET;
+			if(name.contains("CHESTPLATE"))
+				armorType = ArmorType.CHESTPLATE;
+			if(name.contains("LEGGINGS"))
+				armorType = ArmorType.LEGGINGS;
+			if(name.contains("BOOTS"))
+				armorType = ArmorType.BOOTS;
+			if(name.contains("DIAMOND"))
+				armorLevel = ArmorLevel.DIAMOND;
+			if(name.contains("IRON"))
+				armorLevel = ArmorLevel.IRON;
+			if(name.contains("CHAINMAIL"))
+				armorLevel = ArmorLevel.CHAINMAIL;
+			if(name.contains("GOLD"))
+				armorLevel = ArmorLevel.GOLD;
+			if(name.contains("LEATHER"))
+				armorLevel = ArmorLevel.LEATHER;
+			if(name.contains("WOOL")){
+				armorType = ArmorType.HELMET;
+				armorLevel = ArmorLevel.WOOL;
+			}
+			if(name.contains("SKULL")){
+				armorType = ArmorType.HELMET;
+				armorLevel = ArmorLevel.SKULL;
+			}
+			this.armorType = armorType;
+			this.armorLevel = armorLevel;
+
+			WeaponType weaponType = null;
+			WeaponLevel weaponLevel = null;
+			if(name.contains("SWORD"))
+				weaponType = WeaponType.SWORD;
+			if(name.contains("AXE"))
+				weaponType = WeaponType.AXE;
+			if(name.contains("BOW")){
+				weaponType = WeaponType.BOW;
+				weaponLevel = WeaponLevel.WOOD;
+			}
+			if(name.contains("DIAMOND"))
+				weaponLevel = WeaponLevel.DIAMOND;
+			if(name.contains("IRON"))
+				weaponLevel = WeaponLevel.IRON;
+			if(name.contains("GOLD"))
+				weaponLevel = WeaponLevel.GOLD;
+			if(name.contains("STONE"))
+				weaponLevel = WeaponLevel.STONE;
+			if(name.contains("WOOD"))
+				weaponLevel = WeaponLevel.WOOD;
+			this.weaponType = weaponType;
+			this.weaponLevel = weaponLevel;
+
+			this.maxStackSize = maxStackSize;
+		}
+
+	}
+
+}
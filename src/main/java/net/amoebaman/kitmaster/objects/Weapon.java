@@ -36,26 +36,10 @@ public class Weapon{
 	 * @param mat the Material
 	 */
 	public Weapon(Material mat){
-		if(mat != null){
-			if(mat.name().contains("SWORD"))
-				type = WeaponType.SWORD;
-			if(mat.name().contains("AXE"))
-				type = WeaponType.AXE;
-			if(mat.name().contains("BOW")){
-				type = WeaponType.BOW;
-				lvl = WeaponLevel.WOOD;
-			}
-
-			if(mat.name().contains("DIAMOND"))
-				lvl = WeaponLevel.DIAMOND;
-			if(mat.name().contains("IRON"))
-				lvl = WeaponLevel.IRON;
-			if(mat.name().contains("GOLD"))
-				lvl = WeaponLevel.GOLD;
-			if(mat.name().contains("STONE"))
-				lvl = WeaponLevel.STONE;
-			if(mat.name().contains("WOOD"))
-				lvl = WeaponLevel.WOOD;
+		MaterialTable.Entry entry = MaterialTable.get().of(mat);
+		if(entry != null){
+			type = entry.weaponType;
+			lvl = entry.weaponLevel;
 			item = getRawItem();
 		}
 		
@@ -118,7 +102,7 @@ public class Weapon{
 	 * @return true if a construction call with this Material will produce a valid Weapon
 	 */
 	public static boolean isValid(Material mat){
-		return new Weapon(mat).isValid();
+		return MaterialTable.get().isWeapon(mat);
 	}
 
 	/**
@@ -1,15 +1,45 @@
 package net.amoebaman.kitmaster.sql;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.amoebaman.kitmaster.KitMaster;
-import net.amoebaman.kitmaster.handlers.KitHandler;
-import net.amoebaman.kitmaster.objects.Kit;
 
 public class SQLHandler {
 	
-	/** The SQLHandler's connection to its SQL server */
-	private Connection connection = null;
+	/** The version of the database layout this version of KitMaster uses */
+	private static final int SCHEMA_VERSION = 1;
+	
+	/** The SQLHandler's connection to its SQL server, and a second connection used only by the writer so its transactions never catch anything sent from the main thread */
+	private Connection connection = null, writeConnection = null;
+	
+	/** Sends queued commands in batches, one batch at a time */
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+	
+	/**
+	 * Commands waiting to be sent, by the row they write to, so that a newer command for a row replaces an older one that hasn't been sent yet
+	 * Each entry is a unit of one or more commands that are always sent in the same transaction, or a task to run once everything before it has been sent
+	 */
+	private final LinkedHashMap<String, Unit> pending = new LinkedHashMap<String, Unit>();
+	private long unkeyed = 0;
+	
+	/** The most commands sent in one batch */
+	private final int batchSize;
+	
+	/** Whether a flush has been asked for early because a full batch is waiting */
+	private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+	
+	/** Counters for the write queue, see the getters */
+	private final AtomicLong coalesced = new AtomicLong(), written = new AtomicLong(), batches = new AtomicLong(), flushNanos = new AtomicLong(), lastFlushNanos = new AtomicLong();
 	
 	/**
 	 * Constructs an SQLHandler for an SQL server with its URL and connection credentials
@@ -22,29 +52,144 @@ public class SQLHandler {
 			Class.forName("com.mysql.jdbc.Driver");
 			connection = DriverManager.getConnection("jdbc:mysql://" + url + "/", username, password);
 			connection.setClientInfo("autoReconnect", "true");
+			writeConnection = DriverManager.getConnection("jdbc:mysql://" + url + "/", username, password);
+			writeConnection.setClientInfo("autoReconnect", "true");
 		}
 		catch(Exception e){ e.printStackTrace(); }
 		
+		batchSize = Math.max(1, KitMaster.config().getInt("mysql.batchSize", 200));
+		long interval = Math.max(50, KitMaster.config().getLong("mysql.flushInterval", 1000));
+		
 		if(isConnected()){
 			KitMaster.logger().info("Successfully connected to MySQL server");
 			executeCommand(SQLQueries.CREATE_DATABASE);
 			executeCommand(SQLQueries.USE_DATABASE);
 			executeCommand(SQLQueries.CREATE_HISTORY_TABLE);
 			executeCommand(SQLQueries.CREATE_SIGN_TABLE);
-			executeCommand(SQLQueries.CREATE_TIMESTAMP_TABLE);
-			
-			for(Kit kit : KitHandler.getKits())
-				executeCommand(SQLQueries.ADD_KIT_TO_TIMESTAMP_TABLE.replace(SQLQueries.KIT_MACRO, kit.name));
+			executeCommand(SQLQueries.CREATE_COOLDOWN_TABLE);
+			executeCommand(SQLQueries.CREATE_SCHEMA_TABLE);
+			/*
+			 * Running against a half-moved database would lose timestamps, so stay off SQL until the move succeeds
+			 */
+			if(!migrate()){
+				KitMaster.logger().severe("Failed to bring the MySQL database up to date, KitMaster will not use MySQL until it succeeds");
+				close();
+				return;
+			}
+			try{ writeConnection.createStatement().execute(SQLQueries.USE_DATABASE); }
+			catch(Exception e){
+				e.printStackTrace();
+				writeConnection = null;
+			}
+			writer.scheduleWithFixedDelay(new Runnable(){ public void run(){
+				drain();
+			}}, interval, interval, TimeUnit.MILLISECONDS);
 		}
 		else
 			KitMaster.logger().warning("Failed to connect to MySQL server");
 	}
 	
+	/**
+	 * Brings the database layout up to date, one version at a time.
+	 * The version is only recorded once a step has finished, so a step that fails is tried again the next time KitMaster starts.
+	 * @return true if the database is up to date, false if a step failed
+	 */
+	private boolean migrate(){
+		Integer version = getFirstResult(executeQuery(SQLQueries.GET_SCHEMA_VERSION), "version", Integer.class);
+		int current = version == null ? 0 : version;
+		if(current >= SCHEMA_VERSION)
+			return true;
+		/*
+		 * Version 1 moved timestamps from one column per kit to one row per timestamp
+		 */
+		if(current < 1){
+			if(!migrateTimestamps())
+				return false;
+			setSchemaVersion(current = 1);
+		}
+		return true;
+	}
+	
+	/*
+	 * Closes both connections and stops the writer, leaving this SQLHandler disconnected
+	 */
+	private void close(){
+		writer.shutdown();
+		for(Connection conn : new Connection[]{ connection, writeConnection })
+			if(conn != null)
+				try{ conn.close(); }
+				catch(SQLException sqle){ sqle.printStackTrace(); }
+		connection = writeConnection = null;
+	}
+	
+	private void setSchemaVersion(int version){
+		executeCommand(SQLQueries.SET_SCHEMA_VERSION.replace(SQLQueries.VERSION_MACRO, "" + version));
+	}
+	
+	/*
+	 * Copies the old timestamp table into the cooldown table a batch of players at a time, each batch in its own transaction
+	 * The old table is left where it is, so nothing is lost if something goes wrong
+	 */
+	private boolean migrateTimestamps(){
+		List<String> kits = new ArrayList<String>();
+		try{
+			ResultSet columns = executeQuery(SQLQueries.GET_OLD_TIMESTAMP_COLUMNS);
+			while(columns != null && columns.next())
+				kits.add(columns.getString("column_name"));
+		}
+		catch(SQLException sqle){
+			sqle.printStackTrace();
+			return false;
+		}
+		if(kits.isEmpty())
+			return true;
+		Number total = getFirstResult(executeQuery(SQLQueries.COUNT_OLD_TIMESTAMP_ROWS), "players", Number.class);
+		KitMaster.logger().info("Moving timestamps for " + kits.size() + " kits and " + (total == null ? "?" : total) + " players to the new cooldowns table, KitMaster will finish enabling once this is done...");
+		String last = "";
+		int moved = 0, done = 0, players;
+		long start = System.currentTimeMillis();
+		do{
+			List<String> batch = new ArrayList<String>();
+			players = 0;
+			try{
+				ResultSet rows = executeQuery(SQLQueries.GET_OLD_TIMESTAMP_ROWS.replace(SQLQueries.PLAYER_MACRO, last));
+				while(rows != null && rows.next()){
+					last = rows.getString("player");
+					players++;
+					for(String kit : kits){
+						long stamp = rows.getLong(kit);
+						if(stamp != 0)
+							batch.add(SQLQueries.MIGRATE_TIMESTAMP.replace(SQLQueries.PLAYER_MACRO, last).replace(SQLQueries.KIT_MACRO, kit).replace(SQLQueries.TIMESTAMP_MACRO, "" + stamp));
+					}
+				}
+			}
+			catch(SQLException sqle){
+				sqle.printStackTrace();
+				return false;
+			}
+			if(!batch.isEmpty() && !executeBatch(batch)){
+				KitMaster.logger().severe("Failed to move timestamps after " + done + " players, the move will start over the next time KitMaster is enabled");
+				return false;
+			}
+			moved += batch.size();
+			done += players;
+			if(players > 0)
+				KitMaster.logger().info("Moved timestamps for " + done + (total == null ? "" : " of " + total) + " players (" + (System.currentTimeMillis() - start) / 1000 + "s so far)");
+		}
+		while(players == 500);
+		KitMaster.logger().info("Moved " + moved + " timestamps to the new cooldowns table, the old timestamps table can be dropped once you're happy with the move");
+		return true;
+	}
+	
 	/**
 	 * Checks if this SQLHandler is successfully connected to an SQL server
 	 * @return true if this SQLHandler is connected to an SQL server
 	 */
 	public boolean isConnected(){
+		return isConnected(connection);
+	}
+	
+	private static boolean isConnected(Connection connection){
 		try { return connection != null && connection.isValid(3); }
         catch (SQLException sqle) { return false; }
 	}
@@ -63,7 +208,11 @@ public class SQLHandler {
 	 * @param suppressErrors whether or not to prevent any errors that may occur from being printed in the console
 	 */
 	public void executeCommand(String command, boolean suppressErrors){
-		if(isConnected()){
+		executeCommand(connection, command, suppressErrors);
+	}
+	
+	private static void executeCommand(Connection connection, String command, boolean suppressErrors){
+		if(isConnected(connection)){
 			try{ connection.prepareStatement(command).executeUpdate(); }
 			catch(SQLException sqle){
 				if(!suppressErrors && !sqle.getMessage().toLowerCase().contains("duplicate column"))
@@ -72,6 +221,218 @@ public class SQLHandler {
 		}
 	}
 	
+	/**
+	 * Queues a command statement to be sent to the SQL server off the main thread.  Queued commands are sent in batches, each in one transaction, in the order they were queued.
+	 * @param statement the command to execute
+	 */
+	public void queueCommand(String command){
+		queueTransaction(Collections.singletonList(command));
+	}
+	
+	/**
+	 * Queues a command statement that writes a single row to be sent to the SQL server off the main thread.
+	 * If a command for the same row is still waiting to be sent it is replaced, since only the newest write to the row matters.
+	 * @param key identifies the row the command writes, like "history:Notch"
+	 * @param command the command to execute
+	 */
+	public void queueCommand(String key, String command){
+		queue(key, new Unit(Collections.singletonList(command), null));
+	}
+	
+	/**
+	 * Queues command statements to be sent to the SQL server off the main thread, all in the same transaction so that either all of them happen or none do.
+	 * @param commands the commands to execute
+	 */
+	public void queueTransaction(List<String> commands){
+		queue(nextKey(), new Unit(new ArrayList<String>(commands), null));
+	}
+	
+	/**
+	 * Queues a task to be run on the writer thread once every command queued before it has been sent, such as to forget data that was being held until it was written.
+	 * The task should hand anything that touches Bukkit back to the main thread.
+	 * @param task the task to run
+	 */
+	public void queueCallback(Runnable task){
+		queue(nextKey(), new Unit(Collections.<String>emptyList(), task));
+	}
+	
+	private String nextKey(){
+		synchronized(pending){
+			return "#" + unkeyed++;
+		}
+	}
+	
+	private void queue(String key, Unit unit){
+		int depth;
+		synchronized(pending){
+			/*
+			 * A replacement goes to the back of the queue, so it still comes after everything queued before it
+			 */
+			if(pending.remove(key) != null)
+				coalesced.incrementAndGet();
+			pending.put(key, unit);
+			depth = pending.size();
+		}
+		if(depth >= batchSize && !writer.isShutdown() && flushQueued.compareAndSet(false, true))
+			writer.execute(new Runnable(){ public void run(){
+				flushQueued.set(false);
+				drain();
+			}});
+	}
+	
+	/*
+	 * Sends everything waiting in the queue, a batch at a time
+	 * A unit is never split between batches, so a batch can run over the batch size by the size of its last unit
+	 * This only ever runs on the writer thread, or on the thread shutting the writer down once the writer has stopped
+	 */
+	private void drain(){
+		while(true){
+			List<Unit> units = new ArrayList<Unit>();
+			List<String> batch = new ArrayList<String>();
+			synchronized(pending){
+				Iterator<Unit> it = pending.values().iterator();
+				while(it.hasNext() && batch.size() < batchSize){
+					Unit unit = it.next();
+					units.add(unit);
+					batch.addAll(unit.commands);
+					it.remove();
+				}
+			}
+			if(units.isEmpty())
+				return;
+			if(!batch.isEmpty()){
+				long start = System.nanoTime();
+				Connection conn = writeConnection != null ? writeConnection : connection;
+				/*
+				 * If the batch fails as a whole, send its units one at a time so one bad command can only take its own unit down with it
+				 */
+				if(!executeBatch(conn, batch))
+					for(Unit unit : units)
+						if(unit.commands.size() == 1)
+							executeCommand(conn, unit.commands.get(0), false);
+						else if(!unit.commands.isEmpty())
+							executeBatch(conn, unit.commands);
+				long elapsed = System.nanoTime() - start;
+				written.addAndGet(batch.size());
+				batches.incrementAndGet();
+				flushNanos.addAndGet(elapsed);
+				lastFlushNanos.set(elapsed);
+			}
+			for(Unit unit : units)
+				if(unit.callback != null)
+					try{
+						unit.callback.run();
+					}
+					catch(Throwable t){
+						t.printStackTrace();
+					}
+		}
+	}
+	
+	/**
+	 * Gets how many queued commands are waiting to be sent.
+	 * @return the number of commands waiting
+	 */
+	public int getQueueDepth(){
+		synchronized(pending){
+			return pending.size();
+		}
+	}
+	
+	/**
+	 * Gets how many queued commands were replaced by a newer command for the same row before they were sent.
+	 * @return the number of commands replaced
+	 */
+	public long getCoalesced(){
+		return coalesced.get();
+	}
+	
+	/**
+	 * Gets how many queued commands have been sent.
+	 * @return the number of commands sent
+	 */
+	public long getWritten(){
+		return written.get();
+	}
+	
+	/**
+	 * Gets how many batches of queued commands have been sent.
+	 * @return the number of batches sent
+	 */
+	public long getBatches(){
+		return batches.get();
+	}
+	
+	/**
+	 * Gets how long the last batch of queued commands took to send.
+	 * @return the time in milliseconds
+	 */
+	public double getLastFlushMillis(){
+		return lastFlushNanos.get() / 1e6;
+	}
+	
+	/**
+	 * Gets how long a batch of queued commands takes to send on average.
+	 * @return the time in milliseconds
+	 */
+	public double getAverageFlushMillis(){
+		long count = batches.get();
+		return count == 0 ? 0 : flushNanos.get() / 1e6 / count;
+	}
+	
+	/**
+	 * Sends a batch of command statements to the SQL server to be executed together in one transaction
+	 * @param commands the commands to execute
+	 * @return true if the batch was committed, false if it was rolled back or there is no connection
+	 */
+	public boolean executeBatch(List<String> commands){
+		return executeBatch(connection, commands);
+	}
+	
+	private static boolean executeBatch(Connection connection, List<String> commands){
+		if(isConnected(connection)){
+			try{
+				connection.setAutoCommit(false);
+				Statement statement = connection.createStatement();
+				for(String command : commands)
+					statement.addBatch(command);
+				statement.executeBatch();
+				connection.commit();
+				return true;
+			}
+			catch(SQLException sqle){
+				sqle.printStackTrace();
+				try{ connection.rollback(); }
+				catch(SQLException e){ e.printStackTrace(); }
+			}
+			finally{
+				try{ connection.setAutoCommit(true); }
+				catch(SQLException e){ e.printStackTrace(); }
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Waits for all queued commands to be executed, and stops accepting new ones.
+	 */
+	public void flush(){
+		if(!writer.isShutdown())
+			writer.execute(new Runnable(){ public void run(){
+				drain();
+			}});
+		writer.shutdown();
+		try{
+			if(!writer.awaitTermination(30, TimeUnit.SECONDS))
+				KitMaster.logger().severe("Timed out while waiting for queued SQL commands to finish");
+			else
+				drain();
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
 	/**
 	 * Sends a query statement to the SQL server to be answered
 	 * @param query the query to make
@@ -99,4 +460,16 @@ public class SQLHandler {
 		catch(Exception e){ return null; }
 	}
 	
+	private static class Unit{
+		
+		private final List<String> commands;
+		private final Runnable callback;
+		
+		public Unit(List<String> commands, Runnable callback){
+			this.commands = commands;
+			this.callback = callback;
+		}
+		
+	}
+	
 }
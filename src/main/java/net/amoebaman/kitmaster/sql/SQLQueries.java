@@ -25,27 +25,72 @@ public class SQLQueries {
 	public static final String USE_DATABASE =
 			"USE kitmaster";
 	
-	/** SQL command to create the timestamp table */
-	public static final String CREATE_TIMESTAMP_TABLE =
-			"CREATE TABLE IF NOT EXISTS timestamps(" +
+	/** Macro intended to be replaced by a version number of the database layout */
+	public static final String VERSION_MACRO = "%version%";
+	
+	/** SQL command to create the table recording which version of the database layout is in use */
+	public static final String CREATE_SCHEMA_TABLE =
+			"CREATE TABLE IF NOT EXISTS schema_version(" +
+			"id INT NOT NULL, " +
+			"version INT NOT NULL, " +
+			"PRIMARY KEY(id))";
+	
+	/** SQL query to retrieve the version of the database layout in use */
+	public static final String GET_SCHEMA_VERSION =
+			"SELECT version FROM schema_version " +
+			"WHERE id = 1";
+	
+	/** SQL command to record the version of the database layout in use */
+	public static final String SET_SCHEMA_VERSION =
+			"INSERT INTO schema_version(id, version) " +
+			"VALUES(1, " + VERSION_MACRO + ") " +
+			"ON DUPLICATE KEY UPDATE version = " + VERSION_MACRO;
+	
+	/** SQL command to create the cooldown table, which holds one row for each timestamp */
+	public static final String CREATE_COOLDOWN_TABLE =
+			"CREATE TABLE IF NOT EXISTS cooldowns(" +
 			"player VARCHAR(16) NOT NULL, " +
-			"PRIMARY KEY(player))";
-	
-	/** SQL command to add a column for a kit to the timestamp table */
-	public static final String ADD_KIT_TO_TIMESTAMP_TABLE =
-			"ALTER TABLE timestamps " +
-			"ADD COLUMN `" + KIT_MACRO + "` BIGINT NOT NULL DEFAULT 0";
+			"kit VARCHAR(50) NOT NULL, " +
+			"stamp BIGINT NOT NULL, " +
+			"PRIMARY KEY(player, kit), " +
+			"INDEX(stamp))";
 	
-	/** SQL query to retrieve timestamp data for a player and kit */
-	public static final String GET_TIMESTAMP =
-			"SELECT `" + KIT_MACRO + "` FROM timestamps " +
+	/** SQL query to retrieve all of a player's timestamp data at once */
+	public static final String GET_TIMESTAMPS =
+			"SELECT kit, stamp FROM cooldowns " +
 			"WHERE player = \"" + PLAYER_MACRO + "\"";
 	
 	/** SQL command to update timestamp data for a player and kit */
 	public static final String UPDATE_TIMESTAMP =
-			"INSERT INTO timestamps(player, `" + KIT_MACRO + "`) " +
-			"VALUES(\"" + PLAYER_MACRO + "\", " + TIMESTAMP_MACRO + ") " +
-			"ON DUPLICATE KEY UPDATE `" + KIT_MACRO + "` = " + TIMESTAMP_MACRO;
+			"INSERT INTO cooldowns(player, kit, stamp) " +
+			"VALUES(\"" + PLAYER_MACRO + "\", \"" + KIT_MACRO + "\", " + TIMESTAMP_MACRO + ") " +
+			"ON DUPLICATE KEY UPDATE stamp = " + TIMESTAMP_MACRO;
+	
+	/** SQL command to remove timestamp data for a player and kit */
+	public static final String REMOVE_TIMESTAMP =
+			"DELETE FROM cooldowns " +
+			"WHERE player = \"" + PLAYER_MACRO + "\" AND kit = \"" + KIT_MACRO + "\"";
+	
+	/** SQL query to retrieve the kit columns of the old timestamp table, which had one column for each kit */
+	public static final String GET_OLD_TIMESTAMP_COLUMNS =
+			"SELECT column_name FROM information_schema.columns " +
+			"WHERE table_schema = \"kitmaster\" AND table_name = \"timestamps\" AND column_name <> \"player\"";
+	
+	/** SQL command to copy a timestamp from the old timestamp table, which never replaces a newer timestamp already in the cooldown table */
+	public static final String MIGRATE_TIMESTAMP =
+			"INSERT INTO cooldowns(player, kit, stamp) " +
+			"VALUES(\"" + PLAYER_MACRO + "\", \"" + KIT_MACRO + "\", " + TIMESTAMP_MACRO + ") " +
+			"ON DUPLICATE KEY UPDATE stamp = GREATEST(stamp, VALUES(stamp))";
+	
+	/** SQL query to count the rows of the old timestamp table */
+	public static final String COUNT_OLD_TIMESTAMP_ROWS =
+			"SELECT COUNT(*) AS players FROM timestamps";
+	
+	/** SQL query to retrieve the next batch of rows from the old timestamp table, after a player */
+	public static final String GET_OLD_TIMESTAMP_ROWS =
+			"SELECT * FROM timestamps " +
+			"WHERE player > \"" + PLAYER_MACRO + "\" " +
+			"ORDER BY player LIMIT 500";
 	
 	/** SQL command to create the sign record table */
 	public static final String CREATE_SIGN_TABLE =
@@ -92,6 +137,12 @@ public class SQLQueries {
 			"VALUES(\"" + PLAYER_MACRO + "\", \"" + HISTORY_MACRO + "\") " +
 			"ON DUPLICATE KEY UPDATE history = \"" + HISTORY_MACRO + "\"";
 	
+	/** SQL command to add a kit to the end of a player's kit history, without having to retrieve the history first */
+	public static final String APPEND_HISTORY =
+			"INSERT INTO history(player, history) " +
+			"VALUES(\"" + PLAYER_MACRO + "\", \"" + KIT_MACRO + "\") " +
+			"ON DUPLICATE KEY UPDATE history = IF(history = \"\", \"" + KIT_MACRO + "\", CONCAT(history, \"," + KIT_MACRO + "\"))";
+	
 	/** SQL command to remove the entry for a player's history */
 	public static final String REMOVE_HISTORY =
 			"DELETE FROM history " +
@@ -52,6 +52,7 @@ public class GiveKitEvent extends Event implements Cancellable {
     
     /**
      * Replaces the kit to be given with a new or modified one.
+     * The kit involved in this event is immutable, so to modify it, use Kit.copy() and pass the modified copy here.
      * @param newKit The new kit that will be given.
      */
     public void setKit(Kit newKit){ kit = newKit; }
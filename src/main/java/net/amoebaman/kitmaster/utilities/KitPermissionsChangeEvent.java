@@ -0,0 +1,51 @@
+package net.amoebaman.kitmaster.utilities;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+
+/**
+ * An event that signals that permissions have changed in a way that might affect which kits players can access.
+ * KitMaster caches the results of kit permission checks, and forgets them when this event is called.
+ * KitMaster calls this event itself whenever it grants or removes kit permissions.  Plugins that manage permissions can call it too.
+ * @author Dennison
+ */
+public class KitPermissionsChangeEvent extends Event {
+	
+	private static final HandlerList handlers = new HandlerList();
+	private Player player;
+	
+	/**
+	 * Constructs an event signalling that a single player's permissions have changed.
+	 * @param player The player.
+	 */
+	public KitPermissionsChangeEvent(Player player){
+		this.player = player;
+	}
+	
+	/**
+	 * Constructs an event signalling that the permissions of any number of players might have changed.
+	 */
+	public KitPermissionsChangeEvent(){
+		this(null);
+	}
+	
+	/**
+	 * Gets the player whose permissions have changed.
+	 * @return The player, or null if the permissions of any player might have changed.
+	 */
+	public Player getPlayer(){ return player; }
+	
+	public HandlerList getHandlers() { return handlers; }
+	public static HandlerList getHandlerList() { return handlers; }
+	
+	/**
+	 * Calls this event, sending it through the Bukkit event system.
+	 */
+	public void callEvent(){
+		Bukkit.getServer().getPluginManager().callEvent(this);
+	}
+	
+}